@@ -0,0 +1,62 @@
+package utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of node descriptors with increasing numbers of links and requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DescriptorBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int links;
+
+    private JsonObject descriptor;
+
+    @Setup
+    public void setup() {
+        JsonObject linksJson = new JsonObject();
+        JsonArray requestsJson = new JsonArray();
+
+        for (int i = 0; i < this.links; i++) {
+            JsonObject link = new JsonObject();
+            link.addProperty("type", i % 2 == 0 ? "STREAM" : "DATA");
+            if(i % 4 == 0) {
+                link.addProperty("schema", "float64[N][3]");
+            }
+            linksJson.add("/link" + i, link);
+
+            JsonObject request = new JsonObject();
+            request.addProperty("link", "remote/link" + i);
+            request.addProperty("type", i % 2 == 0 ? "STREAM" : "DATA");
+            request.addProperty("required", false);
+            requestsJson.add(request);
+        }
+
+        this.descriptor = new JsonObject();
+        this.descriptor.addProperty("end_point", "bench");
+        this.descriptor.add("links", linksJson);
+        this.descriptor.add("requests", requestsJson);
+    }
+
+    @Benchmark
+    public HashMap<String, LinkDescriptor> parseNodeDescriptor() {
+        return Utils.parseNodeDescriptor(this.descriptor);
+    }
+
+    @Benchmark
+    public ArrayList<LinkRequestDescriptor> parseNodeDescriptorRequests() {
+        return Utils.parseNodeDescriptorRequests(this.descriptor);
+    }
+}
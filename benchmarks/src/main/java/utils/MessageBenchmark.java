@@ -0,0 +1,61 @@
+package utils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of request and response envelopes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    // Size of the response body in characters.
+    @Param({"64", "4096", "65536"})
+    public int bodySize;
+
+    private String body;
+    // Null if the body is below the compression threshold.
+    private String compressed;
+    private String messageId;
+
+    @Setup
+    public void setup() {
+        char[] chars = new char[this.bodySize];
+        Arrays.fill(chars, 'x');
+        this.body = new String(chars);
+        this.compressed = Compression.compress(this.body, Compression.DEFLATE);
+        this.messageId = Utils.createMessageId();
+    }
+
+    @Benchmark
+    public String createJsonRequest() {
+        return Utils.createJsonRequest(this.messageId, "remote/link", "GET");
+    }
+
+    @Benchmark
+    public String createJsonResponse() {
+        return Utils.createJsonResponse("DATA", 400, this.body);
+    }
+
+    @Benchmark
+    public String compressBody() {
+        return Compression.compress(this.body, Compression.DEFLATE);
+    }
+
+    @Benchmark
+    public String decompressBody() {
+        return this.compressed == null ? this.body : Compression.decompress(this.compressed, Compression.DEFLATE);
+    }
+
+    @Benchmark
+    public String createMessageId() {
+        return Utils.createMessageId();
+    }
+}
@@ -0,0 +1,54 @@
+package vizier;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dispatch of incoming messages through VizierMqttClient.messageArrived to subscribed callbacks.  The client holds
+ * many unrelated subscriptions, an exact subscription and a wildcard subscription that match the incoming topic.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"DIRECT", "FIXED_POOL"})
+    public VizierRuntime.ThreadModel threadModel;
+
+    @Param({"10", "1000"})
+    public int subscriptions;
+
+    private VizierMqttClient client;
+    private MqttMessage message;
+    private final LongAdder received = new LongAdder();
+
+    @Setup
+    public void setup() {
+        this.client = new VizierMqttClient("localhost", 1883, 1024, OverflowPolicy.DROP_OLDEST, 0,
+                new VizierRuntime(this.threadModel, 4), true, false);
+
+        for (int i = 0; i < this.subscriptions; i++) {
+            this.client.subscribeWithHandler("robots/" + i + "/velocity", (t, p) -> this.received.increment());
+        }
+        this.client.subscribeWithHandler("robots/7/pose", (t, p) -> this.received.increment());
+        this.client.subscribeWithHandler("robots/+/pose", (t, p) -> this.received.increment());
+
+        this.message = new MqttMessage(new byte[72]);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.client.shutdown();
+    }
+
+    @Benchmark
+    public void messageArrived() throws Exception {
+        this.client.messageArrived("robots/7/pose", this.message);
+    }
+}
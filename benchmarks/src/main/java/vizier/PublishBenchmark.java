@@ -0,0 +1,44 @@
+package vizier;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of VizierMqttClient.publish with several producer threads contending for the outgoing queue.  Runs
+ * without a broker, so the queue stays full and every publish evicts the oldest queued message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class PublishBenchmark {
+
+    private VizierMqttClient client;
+    private byte[] payload;
+
+    @Setup
+    public void setup() {
+        this.client = new VizierMqttClient("localhost", 1883, 1024, OverflowPolicy.DROP_OLDEST, 0,
+                new VizierRuntime(VizierRuntime.ThreadModel.DIRECT, 1), true, false);
+        this.payload = new byte[72];
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.client.shutdown();
+    }
+
+    @Benchmark
+    public boolean publishBytes() {
+        return this.client.publish("robots/7/velocity", this.payload);
+    }
+
+    @Benchmark
+    public boolean publishString() {
+        return this.client.publish("robots/7/velocity", "{\"v\": 0.1, \"w\": 0.2}");
+    }
+}
@@ -0,0 +1,87 @@
+package vizier;
+
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import utils.Utils;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serving of GET requests by VizierNode.handleRequest.  Runs without an MQTT broker: the node is on a LoopbackTransport,
+ * and every response is published through a LoopbackBroker to a subscriber that discards it, so that each response
+ * takes the path it does in production rather than piling up in a queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestServingBenchmark {
+
+    // Number of distinct requests cycled through.  Larger than the number of requests the node remembers, so that
+    // every request looks new.
+    private static final int DISTINCT_REQUESTS = 4096;
+
+    @Param({"64", "65536"})
+    public int bodySize;
+
+    private LoopbackBroker broker;
+    private VizierNode node;
+    private String[] requests;
+    private String repeatedRequest;
+    private int next;
+
+    @Setup
+    public void setup() {
+        JsonObject link = new JsonObject();
+        link.addProperty("type", "DATA");
+        JsonObject links = new JsonObject();
+        links.add("/data", link);
+
+        JsonObject descriptor = new JsonObject();
+        descriptor.addProperty("end_point", "bench");
+        descriptor.add("links", links);
+
+        // DIRECT, so that responses are delivered on the benchmark thread and nothing is left running between calls.
+        this.broker = new LoopbackBroker(new VizierRuntime(VizierRuntime.ThreadModel.DIRECT, 1));
+        this.node = new VizierNode(new LoopbackTransport(this.broker), descriptor);
+        // Stands in for the nodes that sent the requests.
+        new LoopbackTransport(this.broker).subscribeWithHandler(Utils.createResponseLink("bench", "+"),
+                (topic, payload) -> { });
+
+        char[] body = new char[this.bodySize];
+        Arrays.fill(body, 'x');
+        this.node.put("bench/data", new String(body));
+
+        this.requests = new String[DISTINCT_REQUESTS];
+        for (int i = 0; i < DISTINCT_REQUESTS; i++) {
+            this.requests[i] = Utils.createJsonRequest(Utils.createMessageId(), "bench/data", "GET");
+        }
+        this.repeatedRequest = this.requests[0];
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.node.shutdown();
+        this.broker.shutdown();
+    }
+
+    /**
+     * A new request for a link whose response is already serialized.
+     */
+    @Benchmark
+    public void serveNewRequest() {
+        this.node.handleRequest(this.requests[this.next]);
+        this.next = (this.next + 1) % DISTINCT_REQUESTS;
+    }
+
+    /**
+     * A retry of a request that was already served.
+     */
+    @Benchmark
+    public void serveRetriedRequest() {
+        this.node.handleRequest(this.repeatedRequest);
+    }
+}
@@ -0,0 +1,153 @@
+package utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips through Compression, and the thresholds and limits around them.
+ */
+public class CompressionTest {
+
+    @Test
+    public void roundTripsACompressibleBody() {
+        String body = repeat("{\"x\": 1.25, \"y\": -3.5}, ", 400);
+        String compressed = Compression.compress(body, Compression.DEFLATE);
+
+        assertNotNull(compressed);
+        assertTrue(compressed.length() < body.length());
+        assertEquals(body, Compression.decompress(compressed, Compression.DEFLATE));
+    }
+
+    @Test
+    public void roundTripsMultiByteCharacters() {
+        String body = repeat("\u00e9t\u00e9 \u6771\u4eac \ud83d\ude80 ", 200);
+
+        assertEquals(body, Compression.decompress(Compression.compress(body, Compression.DEFLATE),
+                Compression.DEFLATE));
+    }
+
+    @Test
+    public void roundTripsBodiesLargerThanTheBuffers() {
+        // Random digits compress to well over the 8 KB kept per thread, and decompress to more still.
+        Random random = new Random(1);
+        char[] digits = new char[200_000];
+        for (int i = 0; i < digits.length; i++) {
+            digits[i] = (char) ('0' + random.nextInt(10));
+        }
+        String body = new String(digits);
+        String compressed = Compression.compress(body, Compression.DEFLATE);
+
+        assertNotNull(compressed);
+        assertTrue(compressed.length() > 16 * 1024);
+        assertEquals(body, Compression.decompress(compressed, Compression.DEFLATE));
+    }
+
+    @Test
+    public void leavesBodiesBelowTheThresholdUncompressed() {
+        assertNull(Compression.compress(repeat("x", Compression.THRESHOLD - 1), Compression.DEFLATE));
+        assertNotNull(Compression.compress(repeat("x", Compression.THRESHOLD), Compression.DEFLATE));
+    }
+
+    @Test
+    public void leavesBodiesThatWouldGrowUncompressed() {
+        Random random = new Random(2);
+        char[] body = new char[4096];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (char) (' ' + random.nextInt(95));
+        }
+
+        assertNull(Compression.compress(new String(body), Compression.DEFLATE));
+    }
+
+    @Test
+    public void decompressesABodyOfExactlyTheLimit() {
+        String decompressed = Compression.decompress(deflatedZeros(Compression.MAX_DECOMPRESSED_SIZE),
+                Compression.DEFLATE);
+
+        assertEquals(Compression.MAX_DECOMPRESSED_SIZE, decompressed.length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsABodyOverTheLimit() {
+        Compression.decompress(deflatedZeros(Compression.MAX_DECOMPRESSED_SIZE + 1), Compression.DEFLATE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsATruncatedBody() {
+        String compressed = Compression.compress(repeat("abcdefgh", 1000), Compression.DEFLATE);
+        byte[] raw = Base64.getDecoder().decode(compressed);
+
+        Compression.decompress(Base64.getEncoder().encodeToString(Arrays.copyOf(raw, raw.length / 2)),
+                Compression.DEFLATE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsABodyThatIsNotDeflated() {
+        Compression.decompress(Base64.getEncoder().encodeToString(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }),
+                Compression.DEFLATE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownEncodings() {
+        Compression.compress(repeat("x", 2048), "gzip");
+    }
+
+    @Test
+    public void decompressesTheResponsesOfABatch() {
+        String body = repeat("0123456789", 500);
+        Response compressed = new Response("DATA", 400, Compression.compress(body, Compression.DEFLATE), 3L,
+                Compression.DEFLATE);
+        Response plain = new Response("DATA", 400, "small", 4L);
+
+        Response batch = Compression.decompress(new Response(400, Arrays.asList(compressed, plain, null)));
+
+        assertEquals(body, batch.getResponses().get(0).getBody());
+        assertNull(batch.getResponses().get(0).getEncoding());
+        assertEquals(Long.valueOf(3), batch.getResponses().get(0).getVersion());
+        assertSame(plain, batch.getResponses().get(1));
+        assertNull(batch.getResponses().get(2));
+        assertSame(plain, Compression.decompress(plain));
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder b = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            b.append(s);
+        }
+        return b.toString();
+    }
+
+    // Deflates the given number of '0' characters without holding them all in memory.
+    private static String deflatedZeros(int size) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[64 * 1024];
+        byte[] buffer = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) '0');
+
+        try {
+            for (int left = size; left > 0; left -= chunk.length) {
+                deflater.setInput(chunk, 0, Math.min(left, chunk.length));
+                while (!deflater.needsInput()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+}
@@ -0,0 +1,146 @@
+package utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of values through LinkSchema.encode() and PackedReader, and the edges of both.
+ */
+public class PackedReaderTest {
+
+    @Test
+    public void readsBackAnArray() {
+        LinkSchema schema = LinkSchema.parse("float64[N][3]");
+        double[] values = { 1.5, -2, 3, 4, 5, 6.25 };
+
+        PackedReader reader = schema.newReader().wrap(ByteBuffer.wrap(schema.encode(values)));
+        double[] out = new double[values.length];
+
+        assertEquals(2, reader.getRows());
+        assertEquals(3, reader.getRowLength());
+        assertEquals(6, reader.copyTo(out));
+        assertArrayEquals(values, out, 0);
+        assertEquals(6.25, reader.get(1, 2), 0);
+    }
+
+    @Test
+    public void readsBackRecordsOfEveryType() {
+        LinkSchema schema = LinkSchema.parse("{a:float64,b:float32,c:int64,d:int32,e:int16,f:int8,g:uint16,h:uint8}[N]");
+        double[][] rows = {
+                { Double.MAX_VALUE, 0.5f, Long.MIN_VALUE, Integer.MAX_VALUE, Short.MIN_VALUE, Byte.MIN_VALUE, 65535, 255 },
+                { -0.0, -3.25f, 1L << 52, Integer.MIN_VALUE, Short.MAX_VALUE, Byte.MAX_VALUE, 0, 0 }
+        };
+
+        PackedReader reader = schema.newReader().wrap(ByteBuffer.wrap(schema.encode(rows)));
+
+        assertEquals(2, reader.getRows());
+        assertEquals(6, schema.getFieldColumn("g"));
+        assertEquals(-1, schema.getFieldColumn("z"));
+        for (int row = 0; row < rows.length; row++) {
+            for (int col = 0; col < rows[row].length; col++) {
+                assertEquals("(" + row + ", " + col + ")", rows[row][col], reader.get(row, col), 0);
+            }
+        }
+    }
+
+    @Test
+    public void readsFromThePositionOfTheBuffer() {
+        LinkSchema schema = LinkSchema.parse("int32[2]");
+        byte[] payload = schema.encode(new double[] { 7, -7 });
+        ByteBuffer buffer = ByteBuffer.allocate(3 + payload.length);
+        buffer.position(3);
+        buffer.put(payload).position(3);
+
+        PackedReader reader = schema.newReader().wrap(buffer);
+
+        assertEquals(7, reader.get(0, 0), 0);
+        assertEquals(-7, reader.get(1, 0), 0);
+        assertEquals(3, buffer.position());
+    }
+
+    @Test
+    public void isReusedForEachMessage() {
+        LinkSchema schema = LinkSchema.parse("float32[N]");
+        PackedReader reader = schema.newReader();
+
+        assertEquals(3, reader.wrap(ByteBuffer.wrap(schema.encode(new double[] { 1, 2, 3 }))).getRows());
+        assertEquals(1, reader.wrap(ByteBuffer.wrap(schema.encode(new double[] { 9 }))).getRows());
+        assertEquals(9, reader.get(0, 0), 0);
+    }
+
+    @Test
+    public void readsAnEmptyMessageWithVariableRows() {
+        LinkSchema schema = LinkSchema.parse("float64[N][2]");
+        PackedReader reader = schema.newReader().wrap(ByteBuffer.allocate(0));
+
+        assertEquals(0, reader.getRows());
+        assertEquals(0, reader.copyTo(new double[0]));
+    }
+
+    @Test
+    public void truncatesIntegersAsTheyArePacked() {
+        LinkSchema schema = LinkSchema.parse("{a:uint8,b:int8,c:uint16}");
+        PackedReader reader = schema.newReader().wrap(ByteBuffer.wrap(schema.encode(new double[] { 256, 128, -1 })));
+
+        assertEquals(0, reader.get(0, 0), 0);
+        assertEquals(-128, reader.get(0, 1), 0);
+        assertEquals(65535, reader.get(0, 2), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAPartialRow() {
+        LinkSchema.parse("float64[N]").newReader().wrap(ByteBuffer.allocate(7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTheWrongNumberOfFixedRows() {
+        LinkSchema.parse("int32[2][2]").newReader().wrap(ByteBuffer.allocate(12));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsValuesThatDoNotFillARow() {
+        LinkSchema.parse("float64[N][3]").encode(new double[4]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsARowOfTheWrongLength() {
+        LinkSchema.parse("float64[N][3]").encode(new double[][] { { 1, 2, 3 }, { 1, 2 } });
+    }
+
+    @Test
+    public void rejectsIndicesOutsideTheMessage() {
+        LinkSchema schema = LinkSchema.parse("float64[N][2]");
+        PackedReader reader = schema.newReader().wrap(ByteBuffer.wrap(schema.encode(new double[4])));
+
+        for (int[] x : new int[][] { { 2, 0 }, { -1, 0 }, { 0, 2 }, { 0, -1 } }) {
+            try {
+                reader.get(x[0], x[1]);
+                fail("Read (" + x[0] + ", " + x[1] + ")");
+            } catch (IndexOutOfBoundsException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsADestinationThatIsTooSmall() {
+        LinkSchema schema = LinkSchema.parse("float64[N][2]");
+        schema.newReader().wrap(ByteBuffer.wrap(schema.encode(new double[4]))).copyTo(new double[4], 1);
+    }
+
+    @Test
+    public void rejectsMalformedSchemas() {
+        for (String x : new String[] { "float64[N", "float128[3]", "float64[0]", "float64[3][N]", "{x:float64",
+                "{x}[N]", "float64[x3]x" }) {
+            try {
+                LinkSchema.parse(x);
+                fail("Parsed " + x);
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package vizier;
+
+import com.google.gson.JsonObject;
+import org.junit.Test;
+import utils.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Envelopes built by Coalescer, unpacked again, and told apart from ordinary messages.
+ */
+public class CoalescerTest {
+
+    @Test
+    public void unpacksTheMessagesOfAnEnvelopeInOrder() {
+        CapturingTransport transport = new CapturingTransport();
+        LinkTable table = table("ep");
+        Coalescer coalescer = coalescer(transport, "ep", table);
+        byte[] large = new byte[5000];
+        Arrays.fill(large, (byte) 7);
+
+        coalescer.add(table.get("ep/a"), bytes("1"), PublishOptions.DEFAULT);
+        coalescer.add(table.get("ep/b"), new byte[0], PublishOptions.DEFAULT);
+        coalescer.add(table.get("ep/a"), large, PublishOptions.DEFAULT);
+        coalescer.flush();
+
+        assertEquals(1, transport.published.size());
+        Published envelope = transport.published.get(0);
+        assertEquals("ep/coalesced", envelope.topic);
+        assertTrue(Coalescer.isEnvelope(envelope.topic, envelope.payload));
+
+        List<Published> unpacked = unpack(envelope);
+        assertEquals(3, unpacked.size());
+        assertEquals("ep/a", unpacked.get(0).topic);
+        assertArrayEquals(bytes("1"), unpacked.get(0).payload);
+        assertEquals("ep/b", unpacked.get(1).topic);
+        assertEquals(0, unpacked.get(1).payload.length);
+        assertArrayEquals(large, unpacked.get(2).payload);
+    }
+
+    @Test
+    public void publishesNothingWithoutMessages() {
+        CapturingTransport transport = new CapturingTransport();
+        LinkTable table = table("ep");
+        Coalescer coalescer = coalescer(transport, "ep", table);
+
+        coalescer.flush();
+        coalescer.add(table.get("ep/a"), bytes("x"), PublishOptions.DEFAULT);
+        coalescer.flush();
+        coalescer.flush();
+
+        assertEquals(1, transport.published.size());
+    }
+
+    @Test
+    public void splitsLargeEnvelopes() {
+        CapturingTransport transport = new CapturingTransport();
+        LinkTable table = table("ep");
+        Coalescer coalescer = coalescer(transport, "ep", table);
+        LinkHandle link = table.get("ep/a");
+
+        for (int i = 0; i < 100; i++) {
+            byte[] payload = new byte[1000];
+            Arrays.fill(payload, (byte) i);
+            coalescer.add(link, payload, PublishOptions.DEFAULT);
+        }
+        coalescer.flush();
+
+        assertTrue(transport.published.size() > 1);
+        int next = 0;
+        for (Published x : transport.published) {
+            assertTrue(x.payload.length <= 32 * 1024);
+            for (Published message : unpack(x)) {
+                assertEquals(next++, message.payload[0]);
+            }
+        }
+        assertEquals(100, next);
+    }
+
+    @Test
+    public void publishesWithTheHighestQos() {
+        CapturingTransport transport = new CapturingTransport();
+        LinkTable table = table("ep");
+        Coalescer coalescer = coalescer(transport, "ep", table);
+
+        coalescer.add(table.get("ep/a"), bytes("x"), PublishOptions.DEFAULT);
+        coalescer.add(table.get("ep/a"), bytes("y"), PublishOptions.of(1, false));
+        coalescer.flush();
+
+        assertEquals(1, transport.published.get(0).options.getQos());
+        assertFalse(transport.published.get(0).options.isRetained());
+    }
+
+    @Test
+    public void skipsMessagesOfOtherEndPoints() {
+        CapturingTransport transport = new CapturingTransport();
+        LinkTable table = table("ep2");
+        Coalescer coalescer = coalescer(transport, "ep2", table);
+
+        coalescer.add(table.get("ep2/a"), bytes("x"), PublishOptions.DEFAULT);
+        coalescer.flush();
+
+        List<Published> unpacked = new ArrayList<>();
+        Coalescer.unpack("ep/coalesced", transport.published.get(0).payload,
+                (topic, payload) -> unpacked.add(new Published(topic, payload, null)));
+        assertTrue(unpacked.isEmpty());
+    }
+
+    @Test
+    public void keepsTheMessagesBeforeATruncation() {
+        CapturingTransport transport = new CapturingTransport();
+        LinkTable table = table("ep");
+        Coalescer coalescer = coalescer(transport, "ep", table);
+
+        coalescer.add(table.get("ep/a"), bytes("first"), PublishOptions.DEFAULT);
+        coalescer.add(table.get("ep/a"), bytes("second"), PublishOptions.DEFAULT);
+        coalescer.flush();
+
+        byte[] envelope = transport.published.get(0).payload;
+        // Each truncation logs a warning.
+        Level level = Logger.getGlobal().getLevel();
+        Logger.getGlobal().setLevel(Level.OFF);
+
+        try {
+            for (int length = 4; length < envelope.length; length++) {
+                List<Published> unpacked = unpack(new Published("ep/coalesced", Arrays.copyOf(envelope, length), null));
+
+                assertTrue(unpacked.size() <= 1);
+                for (Published x : unpacked) {
+                    assertArrayEquals(bytes("first"), x.payload);
+                }
+            }
+        } finally {
+            Logger.getGlobal().setLevel(level);
+        }
+    }
+
+    @Test
+    public void recognizesOnlyMarkedEnvelopesOnEnvelopeTopics() {
+        CapturingTransport transport = new CapturingTransport();
+        LinkTable table = table("ep");
+        Coalescer coalescer = coalescer(transport, "ep", table);
+        coalescer.add(table.get("ep/a"), bytes("x"), PublishOptions.DEFAULT);
+        coalescer.flush();
+        byte[] envelope = transport.published.get(0).payload;
+
+        assertTrue(Coalescer.isEnvelope("ep/coalesced", envelope));
+        assertFalse(Coalescer.isEnvelope("ep/coalesced", bytes("raw")));
+        assertFalse(Coalescer.isEnvelope("ep/coalesced", new byte[0]));
+        assertFalse(Coalescer.isEnvelope("ep/a/coalesced", envelope));
+        assertFalse(Coalescer.isEnvelope("ep/coalescedx", envelope));
+    }
+
+    @Test
+    public void deliversOrdinaryMessagesOnEnvelopeTopics() {
+        LoopbackBroker broker = new LoopbackBroker(new VizierRuntime(VizierRuntime.ThreadModel.DIRECT, 1));
+        List<String> received = new ArrayList<>();
+
+        try {
+            LoopbackTransport transport = new LoopbackTransport(broker);
+            transport.subscribeWithHandler("ep/#", (topic, payload) -> received.add(topic + " " + string(payload)));
+            transport.publish("ep/coalesced", bytes("raw"));
+        } finally {
+            broker.shutdown();
+        }
+
+        assertEquals(Collections.singletonList("ep/coalesced raw"), received);
+    }
+
+    @Test
+    public void subscribesEnvelopesOnlyForFiltersThatDoNotMatchThem() {
+        assertEquals("ep/coalesced", Coalescer.envelopeFilter("ep/a"));
+        assertEquals("ep/coalesced", Coalescer.envelopeFilter("ep/+/a"));
+        assertEquals("+/coalesced", Coalescer.envelopeFilter("+/a"));
+        assertNull(Coalescer.envelopeFilter("ep/#"));
+        assertNull(Coalescer.envelopeFilter("ep/+"));
+        assertNull(Coalescer.envelopeFilter("+/#"));
+        assertNull(Coalescer.envelopeFilter("#"));
+        assertNull(Coalescer.envelopeFilter("ep"));
+        assertNull(Coalescer.envelopeFilter("ep/requests"));
+        assertNull(Coalescer.envelopeFilter("ep/responses/1"));
+        assertNull(Coalescer.envelopeFilter("ep/invalidations"));
+        assertNull(Coalescer.envelopeFilter("ep/coalesced"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reservesTheEnvelopeLink() {
+        Utils.parseNodeDescriptor(descriptor("ep", "/coalesced"));
+    }
+
+    // Coalesces every link of the table.
+    private static Coalescer coalescer(Transport transport, String endpoint, LinkTable table) {
+        List<LinkHandle> links = new ArrayList<>();
+        for (int i = 0; i < table.size(); i++) {
+            links.add(table.get(i));
+        }
+
+        return new Coalescer(transport, endpoint, table, links, 0);
+    }
+
+    private static LinkTable table(String endpoint) {
+        return new LinkTable(Utils.parseNodeDescriptor(descriptor(endpoint, "/a", "/b")), Collections.emptyList());
+    }
+
+    private static JsonObject descriptor(String endpoint, String... links) {
+        JsonObject all = new JsonObject();
+        for (String x : links) {
+            JsonObject link = new JsonObject();
+            link.addProperty("type", "STREAM");
+            all.add(x, link);
+        }
+
+        JsonObject descriptor = new JsonObject();
+        descriptor.addProperty("end_point", endpoint);
+        descriptor.add("links", all);
+        return descriptor;
+    }
+
+    private static List<Published> unpack(Published envelope) {
+        List<Published> unpacked = new ArrayList<>();
+        Coalescer.unpack(envelope.topic, envelope.payload,
+                (topic, payload) -> unpacked.add(new Published(topic, payload, null)));
+        return unpacked;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] payload) {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private static class Published {
+
+        final String topic;
+        final byte[] payload;
+        final PublishOptions options;
+
+        Published(String topic, byte[] payload, PublishOptions options) {
+            this.topic = topic;
+            this.payload = payload;
+            this.options = options;
+        }
+    }
+
+    /**
+     * Keeps what is published rather than delivering it.
+     */
+    private static class CapturingTransport implements Transport {
+
+        final List<Published> published = new ArrayList<>();
+
+        @Override
+        public boolean publish(String topic, byte[] payload) {
+            this.published.add(new Published(topic, payload, PublishOptions.DEFAULT));
+            return true;
+        }
+
+        @Override
+        public CompletableFuture<Void> publish(String topic, byte[] payload, PublishOptions options) {
+            this.published.add(new Published(topic, payload, options));
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void subscribeWithHandler(String topic, MessageHandler handler) {
+        }
+
+        @Override
+        public void unsubscribe(String topic) {
+        }
+
+        @Override
+        public void unsubscribe(String topic, MessageHandler handler) {
+        }
+
+        @Override
+        public VizierRuntime getRuntime() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
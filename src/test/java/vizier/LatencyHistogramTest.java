@@ -0,0 +1,129 @@
+package vizier;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bucketing and percentiles of LatencyHistogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void reportsZeroWhenEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void resolvesSmallValuesExactly() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 8; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(8, histogram.getCount());
+        assertEquals(3.5, histogram.getMean(), 0);
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(6, histogram.getPercentile(87.5));
+        assertEquals(7, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void recordsNegativeValuesAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void boundsEachValueWithinAnEighth() {
+        List<Long> values = new ArrayList<>();
+        for (int exponent = 3; exponent < 40; exponent++) {
+            long power = 1L << exponent;
+            values.add(power - 1);
+            values.add(power);
+            values.add(power + 1);
+            values.add(power + power / 2);
+        }
+
+        long previous = 0;
+        for (long value : values) {
+            // The larger value keeps getMax() from capping the bound of the smaller one.
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(Long.MAX_VALUE / 2);
+
+            long bound = histogram.getPercentile(50);
+            assertTrue(value + " bounded by " + bound, bound >= value && bound - value <= value / 8);
+            assertTrue(bound >= previous);
+            previous = bound;
+        }
+    }
+
+    @Test
+    public void separatesValuesInAdjacentBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.record(1200);
+
+        assertTrue(histogram.getPercentile(50) < 1200);
+        assertEquals(1200, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void keepsValuesBeyondTheLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(1L << 50);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertTrue(histogram.getPercentile(50) >= 1L << 39);
+        assertTrue(histogram.getPercentile(100) <= Long.MAX_VALUE);
+    }
+
+    @Test
+    public void clearsOnReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void countsConcurrentRecords() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+
+        for (int i = 0; i < threads.length; i++) {
+            final long offset = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100_000; j++) {
+                    histogram.record(offset + j);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread x : threads) {
+            x.join();
+        }
+
+        assertEquals(400_000, histogram.getCount());
+        assertEquals(100_002, histogram.getMax());
+    }
+}
@@ -0,0 +1,70 @@
+package vizier;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Delivery between LoopbackTransports, and the lifetime of the default broker they share.
+ */
+public class LoopbackTransportTest {
+
+    @After
+    public void tearDown() {
+        LoopbackBroker.shutdownDefault();
+    }
+
+    @Test
+    public void deliversToMatchingSubscribersOfOtherTransports() {
+        LoopbackBroker broker = new LoopbackBroker(new VizierRuntime(VizierRuntime.ThreadModel.DIRECT, 1));
+        List<String> received = new ArrayList<>();
+
+        try {
+            LoopbackTransport publisher = new LoopbackTransport(broker);
+            LoopbackTransport subscriber = new LoopbackTransport(broker);
+            subscriber.subscribeWithHandler("ep/+", (topic, payload) -> received.add(topic));
+
+            publisher.publish("ep/a", "x".getBytes(StandardCharsets.UTF_8));
+            subscriber.shutdown();
+            publisher.publish("ep/b", "x".getBytes(StandardCharsets.UTF_8));
+        } finally {
+            broker.shutdown();
+        }
+
+        assertEquals(Collections.singletonList("ep/a"), received);
+    }
+
+    @Test
+    public void shutsDownTheDefaultBrokerWithItsLastTransport() {
+        LoopbackTransport first = new LoopbackTransport();
+        LoopbackTransport second = new LoopbackTransport();
+        LoopbackBroker broker = LoopbackBroker.getDefault();
+
+        first.shutdown();
+        first.shutdown();
+        assertSame(broker, LoopbackBroker.getDefault());
+        assertSame(broker.getRuntime(), second.getRuntime());
+
+        second.shutdown();
+        assertNotSame(broker, LoopbackBroker.getDefault());
+    }
+
+    @Test
+    public void keepsABrokerReplacedByShutdownDefault() {
+        LoopbackTransport old = new LoopbackTransport();
+        LoopbackBroker.shutdownDefault();
+        LoopbackTransport current = new LoopbackTransport();
+        LoopbackBroker broker = LoopbackBroker.getDefault();
+
+        old.shutdown();
+
+        assertSame(broker, LoopbackBroker.getDefault());
+        assertSame(broker.getRuntime(), current.getRuntime());
+    }
+}
@@ -0,0 +1,145 @@
+package vizier;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Overflow policies of the outgoing lanes of VizierMqttClient.  The client never connects, so the publishing thread
+ * holds on to the first message it takes and the lanes fill up behind it.
+ */
+public class PublishLaneTest {
+
+    private static final int CAPACITY = 4;
+    private static final byte[] PAYLOAD = { 1 };
+
+    private VizierMqttClient client;
+
+    @After
+    public void tearDown() {
+        if(this.client != null) {
+            this.client.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectsStreamMessagesWhenFull() {
+        this.client = stalledClient(OverflowPolicy.REJECT, 1000);
+
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(this.client.publish("ep/a", PAYLOAD));
+        }
+
+        assertFalse(this.client.publish("ep/a", PAYLOAD));
+        assertEquals(1, this.client.getDroppedMessageCount());
+        assertEquals(CAPACITY, this.client.getOutgoingQueueDepth());
+    }
+
+    @Test
+    public void dropsTheOldestStreamMessagesWhenFull() {
+        this.client = stalledClient(OverflowPolicy.DROP_OLDEST, 1000);
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+
+        for (int i = 0; i < CAPACITY + 2; i++) {
+            sent.add(this.client.publish("ep/a", PAYLOAD, PublishOptions.DEFAULT));
+        }
+
+        assertTrue(sent.get(0).isCompletedExceptionally());
+        assertTrue(sent.get(1).isCompletedExceptionally());
+        for (int i = 2; i < sent.size(); i++) {
+            assertFalse(sent.get(i).isDone());
+        }
+        assertEquals(2, this.client.getDroppedMessageCount());
+        assertEquals(CAPACITY, this.client.getOutgoingQueueDepth());
+    }
+
+    @Test
+    public void waitsForSpaceUpToTheBlockTimeout() {
+        this.client = stalledClient(OverflowPolicy.BLOCK, 50);
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(this.client.publish("ep/a", PAYLOAD));
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<Void> sent = this.client.publish("ep/a", PAYLOAD, PublishOptions.DEFAULT);
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(sent.isCompletedExceptionally());
+        assertEquals(1, this.client.getDroppedMessageCount());
+    }
+
+    @Test
+    public void queuesControlMessagesWhileTheStreamLaneIsFull() {
+        this.client = stalledClient(OverflowPolicy.REJECT, 50);
+        for (int i = 0; i < CAPACITY; i++) {
+            this.client.publish("ep/a", PAYLOAD);
+        }
+
+        CompletableFuture<Void> response = this.client.publish("ep/responses/1", PAYLOAD, PublishOptions.CONTROL);
+
+        assertFalse(response.isDone());
+        assertEquals(1, this.client.getControlQueueDepth());
+        assertEquals(CAPACITY + 1, this.client.getOutgoingQueueDepth());
+    }
+
+    @Test
+    public void neverDropsQueuedControlMessagesToMakeSpace() {
+        this.client = stalledClient(OverflowPolicy.DROP_OLDEST, 50);
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+
+        for (int i = 0; i < CAPACITY + 1; i++) {
+            sent.add(this.client.publish("ep/responses/" + i, PAYLOAD, PublishOptions.CONTROL));
+        }
+
+        for (int i = 0; i < CAPACITY; i++) {
+            assertFalse(sent.get(i).isDone());
+        }
+        assertTrue(sent.get(CAPACITY).isCompletedExceptionally());
+        assertEquals(CAPACITY, this.client.getControlQueueDepth());
+    }
+
+    @Test
+    public void failsQueuedMessagesOnShutdown() throws InterruptedException {
+        this.client = stalledClient(OverflowPolicy.BLOCK, 1000);
+        CompletableFuture<Void> stream = this.client.publish("ep/a", PAYLOAD, PublishOptions.DEFAULT);
+        CompletableFuture<Void> control = this.client.publish("ep/responses/1", PAYLOAD, PublishOptions.CONTROL);
+
+        this.client.shutdown();
+        this.client = null;
+
+        for (CompletableFuture<Void> x : Arrays.asList(stream, control)) {
+            try {
+                x.get(5, TimeUnit.SECONDS);
+                fail("Sent without a connection");
+            } catch (Exception e) {
+                // Expected.
+            }
+        }
+    }
+
+    // Returns a client whose publishing thread is waiting for a connection with one message, so that later messages
+    // stay queued.
+    private static VizierMqttClient stalledClient(OverflowPolicy overflowPolicy, long blockTimeout) {
+        VizierMqttClient client = new VizierMqttClient("127.0.0.1", 1, CAPACITY, overflowPolicy, blockTimeout,
+                new VizierRuntime(), true, false);
+
+        client.publish("ep/first", PAYLOAD);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.getOutgoingQueueDepth() > 0) {
+            if(System.nanoTime() > deadline) {
+                client.shutdown();
+                throw new IllegalStateException("The publishing thread did not take the first message");
+            }
+            Thread.yield();
+        }
+
+        return client;
+    }
+}
@@ -0,0 +1,198 @@
+package vizier;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering and overflow policies of RingBufferQueue.
+ */
+public class RingBufferQueueTest {
+
+    @Test
+    public void roundsTheCapacityUpToAPowerOfTwo() {
+        assertEquals(8, new RingBufferQueue<Integer>(5, OverflowPolicy.REJECT).getCapacity());
+        assertEquals(8, new RingBufferQueue<Integer>(8, OverflowPolicy.REJECT).getCapacity());
+        assertEquals(1, new RingBufferQueue<Integer>(1, OverflowPolicy.REJECT).getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyCapacity() {
+        new RingBufferQueue<Integer>(0, OverflowPolicy.REJECT);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNull() {
+        new RingBufferQueue<Integer>(4, OverflowPolicy.REJECT).offer(null);
+    }
+
+    @Test
+    public void keepsOrderAcrossTheEndOfTheBuffer() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, OverflowPolicy.REJECT);
+        int next = 0;
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(queue.offer(2 * i));
+            assertTrue(queue.offer(2 * i + 1));
+            assertEquals(Integer.valueOf(next), queue.peek());
+            assertEquals(Integer.valueOf(next++), queue.poll());
+            assertEquals(Integer.valueOf(next++), queue.poll());
+        }
+
+        assertNull(queue.poll());
+        assertNull(queue.peek());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(2, queue.getHighWaterMark());
+    }
+
+    @Test
+    public void rejectsWhenFull() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, OverflowPolicy.REJECT);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+
+        assertFalse(queue.offer(4));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(0, queue.remainingCapacity());
+        assertEquals(Arrays.asList(0, 1, 2, 3), drain(queue));
+    }
+
+    @Test
+    public void dropsTheOldestWhenFull() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 7; i++) {
+            assertTrue(queue.offer(i));
+        }
+
+        assertEquals(3, queue.getDroppedCount());
+        assertEquals(4, queue.size());
+        assertEquals(4, queue.getHighWaterMark());
+        assertEquals(Arrays.asList(3, 4, 5, 6), drain(queue));
+    }
+
+    @Test
+    public void blocksWhenFullUntilAnElementIsTaken() throws Exception {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(2, OverflowPolicy.BLOCK);
+        queue.offer(0);
+        queue.offer(1);
+
+        CompletableFuture<Boolean> offered = CompletableFuture.supplyAsync(() -> queue.offer(2));
+        try {
+            offered.get(100, TimeUnit.MILLISECONDS);
+            fail("Offered to a full queue");
+        } catch (TimeoutException e) {
+            // Expected.
+        }
+
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(offered.get(5, TimeUnit.SECONDS));
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(Arrays.asList(1, 2), drain(queue));
+    }
+
+    @Test
+    public void givesUpATimedOfferWhenFull() throws InterruptedException {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(1, OverflowPolicy.BLOCK);
+        queue.offer(0);
+
+        long start = System.nanoTime();
+        assertFalse(queue.offer(1, 20, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void waitsForAnElement() throws Exception {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, OverflowPolicy.BLOCK);
+
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+        CompletableFuture<Integer> taken = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(20);
+        queue.offer(42);
+
+        assertEquals(Integer.valueOf(42), taken.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void drainsUpToALimit() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(8, OverflowPolicy.REJECT);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(i);
+        }
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(3, queue.drainTo(drained, 3));
+        assertEquals(Arrays.asList(0, 1, 2), drained);
+        assertEquals(Arrays.asList(3, 4), new ArrayList<>(queue));
+    }
+
+    @Test
+    public void passesEveryElementFromProducerToConsumerWhenBlocking() throws Exception {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(16, OverflowPolicy.BLOCK);
+        int count = 200_000;
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                queue.offer(i);
+            }
+        });
+        producer.start();
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll(5, TimeUnit.SECONDS));
+        }
+        producer.join();
+
+        assertEquals(0, queue.getDroppedCount());
+        assertTrue(queue.getHighWaterMark() <= 16);
+    }
+
+    @Test
+    public void keepsTheNewestElementsWhenDroppingUnderLoad() throws Exception {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(16, OverflowPolicy.DROP_OLDEST);
+        int count = 200_000;
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                queue.offer(i);
+            }
+        });
+        producer.start();
+
+        int received = 0;
+        int last = -1;
+        Integer x;
+        while ((x = queue.poll(100, TimeUnit.MILLISECONDS)) != null || producer.isAlive()) {
+            if(x != null) {
+                assertTrue(x > last);
+                last = x;
+                received++;
+            }
+        }
+        producer.join();
+
+        assertEquals(count - 1, last);
+        assertEquals(count, received + queue.getDroppedCount());
+    }
+
+    private static List<Integer> drain(RingBufferQueue<Integer> queue) {
+        List<Integer> drained = new ArrayList<>();
+        queue.drainTo(drained);
+        return drained;
+    }
+}
@@ -0,0 +1,185 @@
+package vizier;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Matching of topics against the filters of a TopicTrie, checked against a direct implementation of the MQTT rules.
+ */
+public class TopicTrieTest {
+
+    private static final String[] FILTERS = { "a", "a/b", "a/+", "a/#", "+/b", "+/+", "#", "+", "a/b/c", "a/+/c",
+            "+/#", "a//b", "a/+/#", "$s/#", "$s/a", "+/a/#", "" };
+    private static final String[] TOPICS = { "a", "a/b", "a/c", "b/b", "a/b/c", "a/x/c", "a//b", "b", "$s", "$s/a",
+            "$s/b", "/a", "a/", "", "/", "x/a/y" };
+
+    @Test
+    public void matchesEveryFilterAgainstEveryTopic() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (String x : FILTERS) {
+            trie.add(x, x);
+        }
+
+        for (String topic : TOPICS) {
+            List<String> expected = new ArrayList<>();
+            for (String filter : FILTERS) {
+                if(matches(filter, topic)) {
+                    expected.add(filter);
+                }
+            }
+
+            assertEquals("Topic " + topic, sorted(expected), dispatch(trie, topic));
+        }
+    }
+
+    @Test
+    public void matchesRandomSubscriptions() {
+        Random random = new Random(7);
+        String[] levels = { "a", "b", "+", "#", "$s", "" };
+        String[] topicLevels = { "a", "b", "c", "$s", "" };
+
+        for (int round = 0; round < 500; round++) {
+            TopicTrie<Integer> trie = new TopicTrie<>();
+            String[] filters = new String[8];
+
+            for (int i = 0; i < filters.length; i++) {
+                filters[i] = randomTopic(random, levels);
+                trie.add(filters[i], i);
+            }
+            for (int i = 0; i < filters.length; i++) {
+                if(random.nextInt(4) == 0) {
+                    trie.remove(filters[i], i);
+                    filters[i] = null;
+                }
+            }
+
+            for (int k = 0; k < 20; k++) {
+                String topic = randomTopic(random, topicLevels);
+                List<Integer> expected = new ArrayList<>();
+                for (int i = 0; i < filters.length; i++) {
+                    if(filters[i] != null && matches(filters[i], topic)) {
+                        expected.add(i);
+                    }
+                }
+
+                List<Integer> delivered = new ArrayList<>();
+                trie.dispatch(topic, null, (subscriber, t, payload) -> delivered.add(subscriber));
+                Collections.sort(delivered);
+                assertEquals("Topic " + topic + " filters " + Arrays.toString(filters), expected, delivered);
+            }
+        }
+    }
+
+    @Test
+    public void deliversOncePerMatchingFilter() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("a/b", "x");
+        trie.add("a/+", "x");
+        trie.add("#", "y");
+
+        assertEquals(3, trie.dispatch("a/b", null, (subscriber, topic, payload) -> { }));
+    }
+
+    @Test
+    public void passesTheTopicAndPayload() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        byte[] payload = { 1, 2 };
+        List<String> topics = new ArrayList<>();
+        trie.add("a/+", "x");
+
+        trie.dispatch("a/b", payload, (subscriber, topic, p) -> {
+            assertSame(payload, p);
+            topics.add(topic);
+        });
+
+        assertEquals(Collections.singletonList("a/b"), topics);
+    }
+
+    @Test
+    public void tracksSubscribersOfEachFilter() {
+        TopicTrie<String> trie = new TopicTrie<>();
+
+        assertTrue(trie.add("a/+", "x"));
+        assertFalse(trie.add("a/+", "y"));
+        assertFalse(trie.add("a/+", "x"));
+        assertTrue(trie.add("a/b", "x"));
+        assertEquals(3, trie.dispatch("a/b", null, (subscriber, topic, payload) -> { }));
+
+        assertFalse(trie.remove("a/+", "x"));
+        assertEquals(Collections.singletonList("y"), dispatch(trie, "a/c"));
+        assertTrue(trie.remove("a/+", "y"));
+        assertFalse(trie.remove("a/+", "y"));
+        assertEquals(Collections.emptyList(), dispatch(trie, "a/c"));
+
+        assertTrue(trie.removeAll("a/b"));
+        assertFalse(trie.removeAll("a/b"));
+        assertTrue(trie.getFilters().isEmpty());
+    }
+
+    @Test
+    public void removesAllSubscribersOfAWildcardFilter() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("a/#", "x");
+        trie.add("a/#", "y");
+        trie.add("a/+/c", "z");
+
+        assertTrue(trie.removeAll("a/#"));
+        assertFalse(trie.removeAll("a/#"));
+        assertEquals(Collections.singletonList("z"), dispatch(trie, "a/b/c"));
+        assertEquals(Collections.singleton("a/+/c"), trie.getFilters());
+    }
+
+    private static List<String> dispatch(TopicTrie<String> trie, String topic) {
+        List<String> delivered = new ArrayList<>();
+        trie.dispatch(topic, null, (subscriber, t, payload) -> delivered.add(subscriber));
+        return sorted(delivered);
+    }
+
+    private static List<String> sorted(List<String> list) {
+        Collections.sort(list);
+        return list;
+    }
+
+    // Up to three levels, with # only as the last.
+    private static String randomTopic(Random random, String[] levels) {
+        int depth = 1 + random.nextInt(3);
+        StringBuilder b = new StringBuilder();
+
+        for (int i = 0; i < depth; i++) {
+            String level = levels[random.nextInt(levels.length)];
+            if(level.equals("#") && i < depth - 1) {
+                level = "+";
+            }
+            b.append(i > 0 ? "/" : "").append(level);
+        }
+
+        return b.toString();
+    }
+
+    private static boolean matches(String filter, String topic) {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+
+        if(topic.startsWith("$") && (filterLevels[0].equals("+") || filterLevels[0].equals("#"))) {
+            return false;
+        }
+
+        for (int i = 0; i < filterLevels.length; i++) {
+            if(filterLevels[i].equals("#")) {
+                return true;
+            }
+            if(i >= topicLevels.length || !(filterLevels[i].equals("+") || filterLevels[i].equals(topicLevels[i]))) {
+                return false;
+            }
+        }
+
+        return filterLevels.length == topicLevels.length;
+    }
+}
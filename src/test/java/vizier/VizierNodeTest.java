@@ -0,0 +1,157 @@
+package vizier;
+
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import utils.Response;
+import utils.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Versions and bodies of DATA links served by a node, while they are modified concurrently.  The node runs on a
+ * LoopbackTransport with DIRECT callbacks, so each response arrives before handleRequest() returns.
+ */
+public class VizierNodeTest {
+
+    private LoopbackBroker broker;
+    private VizierNode node;
+    private final List<Response> responses = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        JsonObject link = new JsonObject();
+        link.addProperty("type", "DATA");
+        link.addProperty("body", "initial");
+        JsonObject links = new JsonObject();
+        links.add("/data", link);
+
+        JsonObject descriptor = new JsonObject();
+        descriptor.addProperty("end_point", "ep");
+        descriptor.add("links", links);
+
+        this.broker = new LoopbackBroker(new VizierRuntime(VizierRuntime.ThreadModel.DIRECT, 1));
+        this.node = new VizierNode(new LoopbackTransport(this.broker), descriptor);
+        new LoopbackTransport(this.broker).subscribeWithHandler(Utils.createResponseLink("ep", "+"),
+                (topic, payload) -> this.responses.add(Utils.parseResponse(new String(payload, StandardCharsets.UTF_8))));
+    }
+
+    @After
+    public void tearDown() {
+        this.node.shutdown();
+        this.broker.shutdown();
+    }
+
+    @Test
+    public void neverServesTwoBodiesUnderOneVersion() throws InterruptedException {
+        Map<Long, String> bodies = new ConcurrentHashMap<>();
+        Thread[] writers = new Thread[4];
+
+        for (int i = 0; i < writers.length; i++) {
+            final int writer = i;
+            writers[i] = new Thread(() -> {
+                for (int j = 0; j < 2000; j++) {
+                    this.node.put("ep/data", writer + "-" + j);
+                }
+            });
+            writers[i].start();
+        }
+
+        long last = 0;
+        int served = 0;
+        while (served < 100 || isAlive(writers)) {
+            Response response = this.get(Utils.createMessageId());
+
+            assertTrue(response.getVersion() >= last);
+            String previous = bodies.putIfAbsent(response.getVersion(), response.getBody());
+            assertTrue("Version " + response.getVersion() + " served with " + previous + " and "
+                    + response.getBody(), previous == null || previous.equals(response.getBody()));
+
+            last = response.getVersion();
+            served++;
+        }
+        for (Thread x : writers) {
+            x.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        Response latest = this.get(Utils.createMessageId());
+        assertTrue(latest.getVersion() >= last);
+        assertTrue(Arrays.asList("0-1999", "1-1999", "2-1999", "3-1999").contains(latest.getBody()));
+    }
+
+    @Test
+    public void givesEachPutANewVersion() {
+        List<Long> versions = new ArrayList<>();
+        versions.add(this.get(Utils.createMessageId()).getVersion());
+
+        for (int i = 0; i < 100; i++) {
+            this.node.put("ep/data", "body " + i);
+            versions.add(this.get(Utils.createMessageId()).getVersion());
+        }
+
+        for (int i = 1; i < versions.size(); i++) {
+            assertTrue(versions.get(i) > versions.get(i - 1));
+        }
+    }
+
+    @Test
+    public void keepsTheVersionOfAnUnchangedBody() {
+        long version = this.get(Utils.createMessageId()).getVersion();
+
+        this.node.put("ep/data", "initial");
+
+        assertEquals(version, (long) this.get(Utils.createMessageId()).getVersion());
+    }
+
+    @Test
+    public void answersARetryAfterAPutWithTheNewBody() {
+        String id = Utils.createMessageId();
+        assertEquals("initial", this.get(id).getBody());
+        assertEquals("initial", this.get(id).getBody());
+
+        this.node.put("ep/data", "modified");
+
+        assertEquals("modified", this.get(id).getBody());
+    }
+
+    @Test
+    public void answersARetriedBatchAfterAPutWithTheNewBody() {
+        String request = Utils.createJsonRequest("1", Arrays.asList("ep/data", "ep/missing"), "GET_BATCH", null);
+
+        this.node.handleRequest(request);
+        this.node.put("ep/data", "modified");
+        this.node.handleRequest(request);
+
+        assertEquals(2, this.responses.size());
+        assertEquals("initial", this.responses.get(0).getResponses().get(0).getBody());
+        assertEquals("modified", this.responses.get(1).getResponses().get(0).getBody());
+        assertEquals(Response.NOT_FOUND, this.responses.get(1).getResponses().get(1).getStatus());
+    }
+
+    // Serves a GET of the link with the given message ID, as a retry does when the ID is reused.
+    private Response get(String id) {
+        this.responses.clear();
+        this.node.handleRequest(Utils.createJsonRequest(id, "ep/data", "GET"));
+
+        assertEquals(1, this.responses.size());
+        return this.responses.get(0);
+    }
+
+    private static boolean isAlive(Thread[] threads) {
+        for (Thread x : threads) {
+            if(x.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,181 @@
+package vizier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Playback of recordings made by VizierRecorder, including recordings cut short by a crash or a full disk.
+ */
+public class VizierReplayerTest {
+
+    private static final String TOPIC = "ep/a";
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LoopbackBroker broker;
+    private final List<String> replayed = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        this.broker = new LoopbackBroker(new VizierRuntime(VizierRuntime.ThreadModel.DIRECT, 1));
+        new LoopbackTransport(this.broker).subscribeWithHandler(TOPIC,
+                (topic, payload) -> this.replayed.add(new String(payload, StandardCharsets.UTF_8)));
+    }
+
+    @After
+    public void tearDown() {
+        this.broker.shutdown();
+    }
+
+    @Test
+    public void replaysARecordingInOrder() throws IOException {
+        Path directory = this.record(10, SEGMENT_SIZE);
+        VizierReplayer replayer = new VizierReplayer(directory.toString());
+
+        assertEquals(10, replayer.replay(new LoopbackTransport(this.broker), 0));
+        assertEquals(messages(0, 10), this.replayed);
+        assertTrue(Double.isNaN(replayer.getPosition()));
+    }
+
+    @Test
+    public void stopsAtARecordCutShort() throws IOException {
+        Path directory = this.record(10, SEGMENT_SIZE);
+        Path segment = VizierRecorder.segmentPath(directory, 0);
+        List<Integer> offsets = recordOffsets(segment);
+
+        // As if the disk filled up halfway through the last record, before the index was written.
+        truncate(segment, offsets.get(9) + 7);
+        Files.delete(VizierRecorder.indexPath(directory, 0));
+        VizierReplayer replayer = new VizierReplayer(directory.toString());
+
+        assertTrue(replayer.getEndTime() >= replayer.getStartTime());
+        assertEquals(9, replayer.replay(new LoopbackTransport(this.broker), 0));
+        assertEquals(messages(0, 9), this.replayed);
+    }
+
+    @Test
+    public void stopsAtARecordWhoseLengthWasNotWritten() throws IOException {
+        Path directory = this.record(10, SEGMENT_SIZE);
+        Path segment = VizierRecorder.segmentPath(directory, 0);
+
+        // The recorder writes the length of a record last, so a crash while writing one leaves it 0.
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), recordOffsets(segment).get(5));
+        }
+        VizierReplayer replayer = new VizierReplayer(directory.toString());
+
+        assertEquals(5, replayer.replay(new LoopbackTransport(this.broker), 0));
+        assertEquals(messages(0, 5), this.replayed);
+    }
+
+    @Test
+    public void continuesWithTheNextSegmentAfterATruncatedOne() throws IOException {
+        Path directory = this.record(40, 256);
+        Path first = VizierRecorder.segmentPath(directory, 0);
+        List<Integer> offsets = recordOffsets(first);
+        assertTrue("Recorded into one segment", Files.exists(VizierRecorder.segmentPath(directory, 1)));
+
+        truncate(first, offsets.get(offsets.size() - 1) + 5);
+        Files.delete(VizierRecorder.indexPath(directory, 0));
+        VizierReplayer replayer = new VizierReplayer(directory.toString());
+        long published = replayer.replay(new LoopbackTransport(this.broker), 0);
+
+        List<String> expected = messages(0, 40);
+        expected.remove(offsets.size() - 1);
+        assertEquals(expected.size(), published);
+        assertEquals(expected, this.replayed);
+    }
+
+    @Test
+    public void rebuildsAMalformedIndex() throws IOException {
+        Path directory = this.record(10, SEGMENT_SIZE);
+        Path segment = VizierRecorder.segmentPath(directory, 0);
+        ByteBuffer x = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Integer> offsets = recordOffsets(segment);
+        Files.write(VizierRecorder.indexPath(directory, 0), new byte[5]);
+        VizierReplayer replayer = new VizierReplayer(directory.toString());
+
+        // Between the arrival times of the fifth and sixth messages, which are milliseconds apart.
+        replayer.seek((x.getLong(offsets.get(4) + 4) + x.getLong(offsets.get(5) + 4)) / 2 / 1e6);
+        assertEquals(5, replayer.replay(new LoopbackTransport(this.broker), 0));
+        assertEquals(messages(5, 10), this.replayed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsADirectoryWithoutARecording() throws IOException {
+        new VizierReplayer(this.folder.newFolder().toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsASegmentWithoutTheMagicNumber() throws IOException {
+        Path directory = this.folder.newFolder().toPath();
+        Files.write(VizierRecorder.segmentPath(directory, 0), new byte[64]);
+
+        new VizierReplayer(directory.toString());
+    }
+
+    // Records the messages "0" to "count - 1", one at a time, so that the next segment is always mapped in time.
+    private Path record(int count, int segmentSize) throws IOException {
+        Path directory = this.folder.newFolder().toPath();
+        VizierRecorder recorder = new VizierRecorder(new LoopbackTransport(this.broker), directory.toString(),
+                Collections.<String>emptyList(), segmentSize);
+
+        for (int i = 0; i < count; i++) {
+            recorder.handle(TOPIC, Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        recorder.close();
+
+        assertEquals(0, recorder.getDroppedCount());
+        return directory;
+    }
+
+    private static List<String> messages(int from, int to) {
+        List<String> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            messages.add(Integer.toString(i));
+        }
+        return messages;
+    }
+
+    // Offsets of the records of a segment, found by following their lengths.
+    private static List<Integer> recordOffsets(Path segment) throws IOException {
+        ByteBuffer x = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Integer> offsets = new ArrayList<>();
+
+        for (int offset = VizierRecorder.HEADER_SIZE, length; offset + 4 <= x.limit() && (length = x.getInt(offset)) > 0;
+             offset += 4 + length) {
+            offsets.add(offset);
+        }
+
+        return offsets;
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of response bodies.  A link opts in by naming an encoding in its descriptor ("compression": "deflate"),
+ * and its GET responses then carry the body compressed and encoded as base64, with the encoding in the encoding field
+ * of the response.  Bodies below THRESHOLD are sent as they are.
+ *
+ * Deflaters and inflaters are pooled, so that compressing a body does not allocate a native zlib stream for it, and
+ * those that do not fit in the pool are ended rather than left for the garbage collector.  A small buffer is kept per
+ * thread; bodies that do not fit in it use a larger one for that call only.
+ */
+public class Compression {
+
+    /**
+     * Deflate with a zlib header, as produced by java.util.zip.Deflater and zlib.compress() in Python.
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Bodies shorter than this many bytes of UTF-8 are not compressed, as they would barely shrink.
+     */
+    public static final int THRESHOLD = 1024;
+
+    /**
+     * Largest body decompress() produces, in bytes of UTF-8, so that a small malicious body cannot exhaust the heap.
+     */
+    public static final int MAX_DECOMPRESSED_SIZE = 64 * 1024 * 1024;
+
+    // Number of idle deflaters and inflaters kept.
+    private static final int MAX_POOLED = 16;
+
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(MAX_POOLED);
+    private static final ArrayBlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(MAX_POOLED);
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    /**
+     * Returns true if bodies can be compressed with the encoding.
+     */
+    public static boolean isSupported(String encoding) {
+        return DEFLATE.equals(encoding);
+    }
+
+    /**
+     * Returns the body compressed with the encoding and encoded as base64, or null if it is below THRESHOLD or would
+     * not be any shorter.
+     *
+     * Throws IllegalArgumentException if the encoding is not supported.
+     */
+    public static String compress(String body, String encoding) {
+        checkSupported(encoding);
+
+        byte[] raw = body.getBytes(StandardCharsets.UTF_8);
+        if(raw.length < THRESHOLD) {
+            return null;
+        }
+
+        Deflater deflater = DEFLATERS.poll();
+        if(deflater == null) {
+            deflater = new Deflater();
+        }
+
+        byte[] out = BUFFER.get();
+        int size = 0;
+
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                if(size == out.length) {
+                    out = grow(out, Integer.MAX_VALUE);
+                }
+                size += deflater.deflate(out, size, out.length - size);
+            }
+        } finally {
+            deflater.reset();
+            if(!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+
+        ByteBuffer encoded = Base64.getEncoder().encode(ByteBuffer.wrap(out, 0, size));
+        if(encoded.remaining() >= raw.length) {
+            return null;
+        }
+
+        return new String(encoded.array(), 0, encoded.remaining(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns a body compressed by compress().
+     *
+     * Throws IllegalArgumentException if the encoding is not supported, the body is malformed, or it decompresses to
+     * more than MAX_DECOMPRESSED_SIZE bytes.
+     */
+    public static String decompress(String body, String encoding) {
+        checkSupported(encoding);
+
+        byte[] compressed = Base64.getDecoder().decode(body);
+        Inflater inflater = INFLATERS.poll();
+        if(inflater == null) {
+            inflater = new Inflater();
+        }
+
+        byte[] out = BUFFER.get();
+        int size = 0;
+
+        try {
+            inflater.setInput(compressed);
+
+            while (!inflater.finished()) {
+                if(size == out.length) {
+                    // One byte over the limit, to tell a body of exactly the limit from a larger one.
+                    out = grow(out, MAX_DECOMPRESSED_SIZE + 1);
+                }
+
+                int inflated = inflater.inflate(out, size, out.length - size);
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Compressed body is truncated");
+                }
+                size += inflated;
+
+                if(size > MAX_DECOMPRESSED_SIZE) {
+                    throw new IllegalArgumentException("Compressed body expands to more than " + MAX_DECOMPRESSED_SIZE
+                            + " bytes");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Compressed body is malformed", e);
+        } finally {
+            inflater.reset();
+            if(!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+
+        return new String(out, 0, size, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the response with its body, and those of the responses it contains, decompressed, or the response
+     * itself if none of them is compressed.
+     */
+    public static Response decompress(Response response) {
+        if(response.getResponses() != null) {
+            List<Response> responses = new ArrayList<>(response.getResponses().size());
+            boolean changed = false;
+
+            for (Response x : response.getResponses()) {
+                Response decompressed = x == null ? null : decompress(x);
+                changed |= decompressed != x;
+                responses.add(decompressed);
+            }
+
+            return changed ? new Response(response.getStatus(), responses) : response;
+        }
+
+        if(response.getEncoding() == null || response.getBody() == null) {
+            return response;
+        }
+
+        return new Response(response.getType(), response.getStatus(),
+                decompress(response.getBody(), response.getEncoding()), response.getVersion());
+    }
+
+    private static void checkSupported(String encoding) {
+        if(!isSupported(encoding)) {
+            throw new IllegalArgumentException("Unknown encoding " + encoding);
+        }
+    }
+
+    // Not kept in BUFFER, so that one large body does not pin a large array to the thread for as long as it lives.
+    private static byte[] grow(byte[] out, int max) {
+        return Arrays.copyOf(out, (int) Math.min(2L * out.length, max));
+    }
+}
@@ -0,0 +1,30 @@
+package utils;
+
+public class Invalidation {
+
+    private final String link;
+    private final long version;
+
+    /**
+     * @param link The DATA link that was modified.
+     * @param version The version of the link after the modification.
+     */
+    public Invalidation(String link, long version) {
+        this.link = link;
+        this.version = version;
+    }
+
+    /**
+     * Returns the link that was modified.
+     */
+    public String getLink() {
+        return link;
+    }
+
+    /**
+     * Returns the version of the link after the modification.
+     */
+    public long getVersion() {
+        return version;
+    }
+}
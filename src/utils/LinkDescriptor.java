@@ -3,6 +3,10 @@ package utils;
 public class LinkDescriptor {
     private final String body;
     private final String type;
+    private final String schema;
+    private final Integer qos;
+    private final Boolean retain;
+    private final String compression;
 
     /**
      * Creates a link descriptor.
@@ -11,8 +15,51 @@ public class LinkDescriptor {
      * @param type Repreents the type of the descriptor.  Must be STREAM or DATA
      */
     public LinkDescriptor(String body, String type) {
+       this(body, type, null);
+    }
+
+    /**
+     * Creates a link descriptor with a binary schema.
+     *
+     * @param body Represents the body of the descriptor, containing relevant data.
+     * @param type Repreents the type of the descriptor.  Must be STREAM or DATA
+     * @param schema Binary layout of the messages on the link (see LinkSchema), or null if the link carries text.
+     */
+    public LinkDescriptor(String body, String type, String schema) {
+       this(body, type, schema, null, null);
+    }
+
+    /**
+     * Creates a link descriptor with a binary schema and publishing settings.
+     *
+     * @param body Represents the body of the descriptor, containing relevant data.
+     * @param type Repreents the type of the descriptor.  Must be STREAM or DATA
+     * @param schema Binary layout of the messages on the link (see LinkSchema), or null if the link carries text.
+     * @param qos MQTT quality of service of the messages on the link (0, 1 or 2), or null for the default of its type.
+     * @param retain Whether the broker retains the latest message on a STREAM link, or null for false.
+     */
+    public LinkDescriptor(String body, String type, String schema, Integer qos, Boolean retain) {
+       this(body, type, schema, qos, retain, null);
+    }
+
+    /**
+     * Creates a link descriptor with a binary schema, publishing settings and compression.
+     *
+     * @param body Represents the body of the descriptor, containing relevant data.
+     * @param type Repreents the type of the descriptor.  Must be STREAM or DATA
+     * @param schema Binary layout of the messages on the link (see LinkSchema), or null if the link carries text.
+     * @param qos MQTT quality of service of the messages on the link (0, 1 or 2), or null for the default of its type.
+     * @param retain Whether the broker retains the latest message on a STREAM link, or null for false.
+     * @param compression Encoding with which large bodies are compressed in GET responses (see Compression), or null
+     *                    if they are sent uncompressed.
+     */
+    public LinkDescriptor(String body, String type, String schema, Integer qos, Boolean retain, String compression) {
        this.body = body;
        this.type = type;
+       this.schema = schema;
+       this.qos = qos;
+       this.retain = retain;
+       this.compression = compression;
     }
 
     /**
@@ -28,4 +75,32 @@ public class LinkDescriptor {
     public String getType() {
         return type;
     }
+
+    /**
+     * Returns the binary schema of the link, or null if none was declared.
+     */
+    public String getSchema() {
+        return schema;
+    }
+
+    /**
+     * Returns the MQTT quality of service of the link, or null if none was declared.
+     */
+    public Integer getQos() {
+        return qos;
+    }
+
+    /**
+     * Returns whether the broker retains the latest message on the link, or null if it was not declared.
+     */
+    public Boolean getRetain() {
+        return retain;
+    }
+
+    /**
+     * Returns the encoding with which large bodies are compressed in GET responses, or null if it was not declared.
+     */
+    public String getCompression() {
+        return compression;
+    }
 }
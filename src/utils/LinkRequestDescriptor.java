@@ -5,6 +5,7 @@ public class LinkRequestDescriptor {
     private final String link;
     private final String type;
     private final boolean required;
+    private final String schema;
 
     /**
      * @param link The link for which the request is made.
@@ -12,9 +13,20 @@ public class LinkRequestDescriptor {
      * @param required Whether the link is required or not (optional).
      */
     public LinkRequestDescriptor(String link, String type, boolean required) {
+        this(link, type, required, null);
+    }
+
+    /**
+     * @param link The link for which the request is made.
+     * @param type The type of the requested link (STREAM or DATA).
+     * @param required Whether the link is required or not (optional).
+     * @param schema Binary layout of the messages on the link (see LinkSchema), or null if the link carries text.
+     */
+    public LinkRequestDescriptor(String link, String type, boolean required, String schema) {
         this.link = link;
         this.type = type;
         this.required = required;
+        this.schema = schema;
     }
 
     /**
@@ -37,4 +49,11 @@ public class LinkRequestDescriptor {
     public String getLink() {
         return link;
     }
+
+    /**
+     * Returns the binary schema of the link, or null if none was declared.
+     */
+    public String getSchema() {
+        return schema;
+    }
 }
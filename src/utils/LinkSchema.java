@@ -0,0 +1,329 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * Binary layout of the messages on a numeric link, as declared by the "schema" field of a link in the node descriptor.
+ * Messages are packed little-endian with no header.  Two forms are supported:
+ *
+ *   float64[N][3]                     An array of one element type.
+ *   {x:float64,y:float64,t:int32}[N]  An array of records.  Fields are packed in order with no padding.
+ *
+ * Dimensions are integers, except for the first, which may be a name (e.g., N) to indicate that it is determined by
+ * the length of each message.  Values are read and written as doubles, addressed by (row, column), where the row is the
+ * index along the first dimension and the column indexes the flattened remaining dimensions and record fields.
+ */
+public final class LinkSchema {
+
+    public enum ElementType {
+        FLOAT64(8), FLOAT32(4), INT64(8), INT32(4), INT16(2), INT8(1), UINT16(2), UINT8(1);
+
+        private final int size;
+
+        ElementType(int size) {
+            this.size = size;
+        }
+
+        /**
+         * Returns the size of the element in bytes.
+         */
+        public int getSize() {
+            return size;
+        }
+    }
+
+    // Marks a dimension determined by the message length.
+    private static final int VARIABLE = -1;
+
+    private final String spec;
+    private final String[] fieldNames;
+    private final ElementType[] fieldTypes;
+    private final int[] fieldOffsets;
+    private final int recordSize;
+    private final int[] dimensions;
+
+    // Number of records in one row (i.e., the product of all dimensions but the first).
+    private final int recordsPerRow;
+    private final int rowLength;
+    private final int rowSize;
+
+    private LinkSchema(String spec, String[] fieldNames, ElementType[] fieldTypes, int[] dimensions) {
+        this.spec = spec;
+        this.fieldNames = fieldNames;
+        this.fieldTypes = fieldTypes;
+        this.dimensions = dimensions;
+
+        this.fieldOffsets = new int[fieldTypes.length];
+        int offset = 0;
+        for (int i = 0; i < fieldTypes.length; i++) {
+            this.fieldOffsets[i] = offset;
+            offset += fieldTypes[i].getSize();
+        }
+        this.recordSize = offset;
+
+        int records = 1;
+        for (int i = 1; i < dimensions.length; i++) {
+            records *= dimensions[i];
+        }
+        this.recordsPerRow = records;
+        this.rowLength = records * fieldTypes.length;
+        this.rowSize = records * this.recordSize;
+    }
+
+    /**
+     * Parses a schema declaration.
+     *
+     * @param spec The schema, e.g., float64[N][3].
+     * Throws IllegalArgumentException if the schema is malformed.
+     */
+    public static LinkSchema parse(String spec) {
+
+        String s = spec.replaceAll("\\s", "");
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<ElementType> types = new ArrayList<>();
+        int dimStart;
+
+        if(s.startsWith("{")) {
+            int end = s.indexOf('}');
+            if(end < 0) {
+                throw new IllegalArgumentException("Unterminated record in schema: " + spec);
+            }
+
+            for (String field : s.substring(1, end).split(",")) {
+                String[] parts = field.split(":");
+                if(parts.length != 2 || parts[0].isEmpty()) {
+                    throw new IllegalArgumentException("Record fields must be name:type in schema: " + spec);
+                }
+                names.add(parts[0]);
+                types.add(parseType(parts[1], spec));
+            }
+            dimStart = end + 1;
+        } else {
+            int end = s.indexOf('[');
+            dimStart = end < 0 ? s.length() : end;
+            names.add(null);
+            types.add(parseType(s.substring(0, dimStart), spec));
+        }
+
+        ArrayList<Integer> dims = new ArrayList<>();
+        int i = dimStart;
+        while (i < s.length()) {
+            int end = s.indexOf(']', i);
+            if(s.charAt(i) != '[' || end < 0) {
+                throw new IllegalArgumentException("Malformed dimensions in schema: " + spec);
+            }
+
+            String dim = s.substring(i + 1, end);
+            if(!dim.isEmpty() && Character.isLetter(dim.charAt(0))) {
+                if(!dims.isEmpty()) {
+                    throw new IllegalArgumentException("Only the first dimension may be variable in schema: " + spec);
+                }
+                dims.add(VARIABLE);
+            } else {
+                try {
+                    int value = Integer.parseInt(dim);
+                    if(value <= 0) {
+                        throw new IllegalArgumentException("Dimensions must be positive in schema: " + spec);
+                    }
+                    dims.add(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Malformed dimension in schema: " + spec, e);
+                }
+            }
+            i = end + 1;
+        }
+
+        if(dims.isEmpty()) {
+            // A single value or record is a one-row array
+            dims.add(1);
+        }
+
+        int[] dimensions = new int[dims.size()];
+        for (int j = 0; j < dimensions.length; j++) {
+            dimensions[j] = dims.get(j);
+        }
+
+        return new LinkSchema(spec, names.toArray(new String[0]), types.toArray(new ElementType[0]), dimensions);
+    }
+
+    private static ElementType parseType(String type, String spec) {
+        try {
+            return ElementType.valueOf(type.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Unknown type (%s) in schema: %s", type, spec), e);
+        }
+    }
+
+    /**
+     * Returns the number of values in one row.
+     */
+    public int getRowLength() {
+        return this.rowLength;
+    }
+
+    /**
+     * Returns the number of bytes in one row.
+     */
+    public int getRowSize() {
+        return this.rowSize;
+    }
+
+    /**
+     * Returns the number of rows, or -1 if it is determined by the length of each message.
+     */
+    public int getRows() {
+        return this.dimensions[0];
+    }
+
+    /**
+     * Returns the column of a named record field within the first record of a row, or -1 if there is no such field.
+     */
+    public int getFieldColumn(String name) {
+        for (int i = 0; i < this.fieldNames.length; i++) {
+            if(name.equals(this.fieldNames[i])) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the number of rows in a message of the given size.
+     *
+     * Throws IllegalArgumentException if the size does not match the schema.
+     */
+    public int rowsIn(int size) {
+        if(this.dimensions[0] == VARIABLE) {
+            if(size % this.rowSize != 0) {
+                throw new IllegalArgumentException(String.format("Message of %d bytes does not match schema %s", size, this.spec));
+            }
+            return size / this.rowSize;
+        }
+
+        if(size != this.dimensions[0] * this.rowSize) {
+            throw new IllegalArgumentException(String.format("Message of %d bytes does not match schema %s", size, this.spec));
+        }
+        return this.dimensions[0];
+    }
+
+    /**
+     * Packs values given in row-major order.
+     *
+     * @param values Values, whose length must be a multiple of the row length.
+     */
+    public byte[] encode(double[] values) {
+
+        if(values.length % this.rowLength != 0) {
+            throw new IllegalArgumentException(String.format("%d values do not fit schema %s", values.length, this.spec));
+        }
+
+        int rows = values.length / this.rowLength;
+        byte[] payload = new byte[this.rowSize * rows];
+        ByteBuffer buffer = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+        this.rowsIn(payload.length);
+
+        for (int i = 0; i < values.length; i++) {
+            this.write(buffer, i / this.rowLength, i % this.rowLength, values[i]);
+        }
+
+        return payload;
+    }
+
+    /**
+     * Packs values given as one array per row.
+     *
+     * @param values Rows of values.  Each row must have exactly the row length.
+     */
+    public byte[] encode(double[][] values) {
+
+        byte[] payload = new byte[this.rowSize * values.length];
+        ByteBuffer buffer = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+        this.rowsIn(payload.length);
+
+        for (int row = 0; row < values.length; row++) {
+            if(values[row].length != this.rowLength) {
+                throw new IllegalArgumentException(String.format("Row of %d values does not fit schema %s", values[row].length, this.spec));
+            }
+
+            for (int col = 0; col < this.rowLength; col++) {
+                this.write(buffer, row, col, values[row][col]);
+            }
+        }
+
+        return payload;
+    }
+
+    /**
+     * Returns a reader for messages with this schema.  The reader is a flyweight: it can be pointed at each incoming
+     * message in turn without allocating.
+     */
+    public PackedReader newReader() {
+        return new PackedReader(this);
+    }
+
+    int offsetOf(int row, int col) {
+        int record = col / this.fieldTypes.length;
+        int field = col % this.fieldTypes.length;
+        return row * this.rowSize + record * this.recordSize + this.fieldOffsets[field];
+    }
+
+    double read(ByteBuffer buffer, int base, int row, int col) {
+        int index = base + this.offsetOf(row, col);
+
+        switch (this.fieldTypes[col % this.fieldTypes.length]) {
+            case FLOAT64:
+                return buffer.getDouble(index);
+            case FLOAT32:
+                return buffer.getFloat(index);
+            case INT64:
+                return buffer.getLong(index);
+            case INT32:
+                return buffer.getInt(index);
+            case INT16:
+                return buffer.getShort(index);
+            case INT8:
+                return buffer.get(index);
+            case UINT16:
+                return buffer.getShort(index) & 0xFFFF;
+            case UINT8:
+                return buffer.get(index) & 0xFF;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private void write(ByteBuffer buffer, int row, int col, double value) {
+        int index = this.offsetOf(row, col);
+
+        switch (this.fieldTypes[col % this.fieldTypes.length]) {
+            case FLOAT64:
+                buffer.putDouble(index, value);
+                break;
+            case FLOAT32:
+                buffer.putFloat(index, (float) value);
+                break;
+            case INT64:
+                buffer.putLong(index, (long) value);
+                break;
+            case INT32:
+                buffer.putInt(index, (int) value);
+                break;
+            case INT16:
+            case UINT16:
+                buffer.putShort(index, (short) (int) value);
+                break;
+            case INT8:
+            case UINT8:
+                buffer.put(index, (byte) (int) value);
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return this.spec;
+    }
+}
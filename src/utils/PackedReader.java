@@ -0,0 +1,101 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads values directly out of a packed binary message, without decoding the whole message.  A reader is a flyweight:
+ * wrap() points it at a new message without allocating, so one reader can be reused for every message on a link.
+ * Readers are not thread-safe.
+ */
+public class PackedReader {
+
+    private final LinkSchema schema;
+    private ByteBuffer buffer;
+    private int base;
+    private int rows;
+
+    PackedReader(LinkSchema schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Points the reader at a message.  The remaining bytes of the buffer are the message.  Sets the byte order of the
+     * buffer to little-endian, but otherwise does not modify it.
+     *
+     * Returns this reader.
+     * Throws IllegalArgumentException if the size of the message does not match the schema.
+     */
+    public PackedReader wrap(ByteBuffer payload) {
+        this.rows = this.schema.rowsIn(payload.remaining());
+        this.buffer = payload.order(ByteOrder.LITTLE_ENDIAN);
+        this.base = payload.position();
+        return this;
+    }
+
+    /**
+     * Returns the schema of the messages read by this reader.
+     */
+    public LinkSchema getSchema() {
+        return this.schema;
+    }
+
+    /**
+     * Returns the number of rows in the current message.
+     */
+    public int getRows() {
+        return this.rows;
+    }
+
+    /**
+     * Returns the number of values in each row.
+     */
+    public int getRowLength() {
+        return this.schema.getRowLength();
+    }
+
+    /**
+     * Returns the value at a row and column of the current message.
+     */
+    public double get(int row, int col) {
+        if(row < 0 || row >= this.rows || col < 0 || col >= this.schema.getRowLength()) {
+            throw new IndexOutOfBoundsException(String.format("(%d, %d) outside of %d x %d message", row, col, this.rows, this.schema.getRowLength()));
+        }
+
+        return this.schema.read(this.buffer, this.base, row, col);
+    }
+
+    /**
+     * Copies the current message into an array in row-major order.
+     *
+     * @param out Destination.  Must hold at least rows * row length values.
+     * Returns the number of values copied.
+     */
+    public int copyTo(double[] out) {
+        return this.copyTo(out, 0);
+    }
+
+    /**
+     * Copies the current message into an array in row-major order, starting at an offset.
+     *
+     * @param out Destination.  Must hold at least rows * row length values after the offset.
+     * @param offset Index in the destination of the first value.
+     * Returns the number of values copied.
+     */
+    public int copyTo(double[] out, int offset) {
+        int rowLength = this.schema.getRowLength();
+        int count = this.rows * rowLength;
+
+        if(out.length - offset < count) {
+            throw new IndexOutOfBoundsException(String.format("Need %d values but only %d fit", count, out.length - offset));
+        }
+
+        for (int row = 0; row < this.rows; row++) {
+            for (int col = 0; col < rowLength; col++) {
+                out[offset++] = this.schema.read(this.buffer, this.base, row, col);
+            }
+        }
+
+        return count;
+    }
+}
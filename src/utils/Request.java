@@ -1,12 +1,15 @@
 package utils;
 
-import com.google.gson.Gson;
+import java.util.List;
 
 public class Request {
 
     private final String id;
     private final String method;
     private final String link;
+    private final Long version;
+    private final List<String> links;
+    private final List<Long> versions;
 
     /**
      * @param id The ID for the request.  Should be something large and random.
@@ -14,9 +17,39 @@ public class Request {
      * @param link Link for which the request is made.
      */
     public Request(String id, String method, String link) {
+        this(id, method, link, null);
+    }
+
+    /**
+     * @param id The ID for the request.  Should be something large and random.
+     * @param method Method for the request (e.g., GET, PUT).
+     * @param link Link for which the request is made.
+     * @param version For a conditional GET, the version of the link that the requester already has, or null.
+     */
+    public Request(String id, String method, String link, Long version) {
         this.id = id;
         this.method = method;
         this.link = link;
+        this.version = version;
+        this.links = null;
+        this.versions = null;
+    }
+
+    /**
+     * Creates a request for several links of the same node (e.g., GET_BATCH).
+     *
+     * @param id The ID for the request.  Should be something large and random.
+     * @param method Method for the request.
+     * @param links Links for which the request is made.
+     * @param versions For each link, the version that the requester already has, or null.  May itself be null.
+     */
+    public Request(String id, String method, List<String> links, List<Long> versions) {
+        this.id = id;
+        this.method = method;
+        this.link = null;
+        this.version = null;
+        this.links = links;
+        this.versions = versions;
     }
 
     /**
@@ -39,6 +72,28 @@ public class Request {
     public String getLink() {
         return link;
     }
+
+    /**
+     * Returns the version of the link that the requester already has, or null if the request is unconditional.
+     */
+    public Long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the links of a request for several links, or null.
+     */
+    public List<String> getLinks() {
+        return links;
+    }
+
+    /**
+     * Returns the versions already held of the links of a request for several links, or null if none are held.
+     * Entries may be null.
+     */
+    public List<Long> getVersions() {
+        return versions;
+    }
 }
 
 
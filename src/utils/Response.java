@@ -1,10 +1,25 @@
 package utils;
 
+import java.util.List;
+
 public class Response {
 
+    /**
+     * Status of a response to a conditional GET whose version is current.  The response has no body.
+     */
+    public static final int NOT_MODIFIED = 304;
+
+    /**
+     * Status of a response for a link that the responder does not have.
+     */
+    public static final int NOT_FOUND = 404;
+
     private final int status;
     private final String body;
     private final String type;
+    private final Long version;
+    private final String encoding;
+    private final List<Response> responses;
 
     /**
      * @param type The type of the link the response is for (STREAM or DATA).
@@ -12,10 +27,49 @@ public class Response {
      * @param body Contains returned data for the request.
      */
     public Response(String type, int status, String body) {
+        this(type, status, body, null);
+    }
+
+    /**
+     * @param type The type of the link the response is for (STREAM or DATA).
+     * @param status The status of the response.
+     * @param body Contains returned data for the request.
+     * @param version Version of the link's data, or null if the link is not versioned.
+     */
+    public Response(String type, int status, String body, Long version) {
+        this(type, status, body, version, null);
+    }
+
+    /**
+     * @param type The type of the link the response is for (STREAM or DATA).
+     * @param status The status of the response.
+     * @param body Contains returned data for the request, compressed if an encoding is given.
+     * @param version Version of the link's data, or null if the link is not versioned.
+     * @param encoding Compression of the body (see Compression), or null if it is not compressed.
+     */
+    public Response(String type, int status, String body, Long version, String encoding) {
 
         this.type = type;
         this.status = status;
         this.body = body;
+        this.version = version;
+        this.encoding = encoding;
+        this.responses = null;
+    }
+
+    /**
+     * Creates a response to a request for several links.
+     *
+     * @param status The status of the response as a whole.
+     * @param responses The response for each requested link, in the order of the request.
+     */
+    public Response(int status, List<Response> responses) {
+        this.type = null;
+        this.status = status;
+        this.body = null;
+        this.version = null;
+        this.encoding = null;
+        this.responses = responses;
     }
 
     /**
@@ -38,4 +92,26 @@ public class Response {
     public String getType() {
         return type;
     }
+
+    /**
+     * Returns the version of the link's data, or null if the responder does not version its links.
+     */
+    public Long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the compression of the body (see Compression), or null if it is not compressed.
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Returns the response for each link of a request for several links, in the order of the request, or null if
+     * this is the response to a single link.
+     */
+    public List<Response> getResponses() {
+        return responses;
+    }
 }
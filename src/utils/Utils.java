@@ -9,6 +9,9 @@ import java.util.*;
 
 public class Utils {
 
+    // Gson instances are thread-safe, so one is shared for all serialization.
+    private static final Gson gson = new Gson();
+
     public static String createMessageId() {
 
         Random r = new Random();
@@ -28,16 +31,84 @@ public class Utils {
         return nodeName + '/' + "responses" + '/' + messageId;
     }
 
+    /**
+     * Returns the link on which a node announces modifications of its DATA links.
+     */
+    public static String createInvalidationLink(String nodeName) {
+        return nodeName + '/' + "invalidations";
+    }
+
+    /**
+     * Returns the link on which a node publishes envelopes of coalesced messages.
+     */
+    public static String createCoalescedLink(String nodeName) {
+        return nodeName + '/' + "coalesced";
+    }
+
+    public static String createJsonInvalidation(String link, long version) {
+
+        Invalidation i = new Invalidation(link, version);
+        return gson.toJson(i);
+    }
+
     public static String createJsonRequest(String id, String link, String method) {
+        return createJsonRequest(id, link, method, null);
+    }
 
-        Request r = new Request(id, method, link);
-        return new Gson().toJson(r, Request.class);
+    /**
+     * Creates a request.  If a version is given, the request is conditional: the responder answers with NOT_MODIFIED
+     * and no body if the link is still at that version.
+     */
+    public static String createJsonRequest(String id, String link, String method, Long version) {
+
+        Request r = new Request(id, method, link, version);
+        return gson.toJson(r, Request.class);
+    }
+
+    /**
+     * Creates a request for several links of the same node.
+     *
+     * @param versions For each link, the version already held, or null.  May itself be null.
+     */
+    public static String createJsonRequest(String id, List<String> links, String method, List<Long> versions) {
+
+        Request r = new Request(id, method, links, versions);
+        return gson.toJson(r, Request.class);
     }
 
     public static String createJsonResponse(String type, int status, String body) {
+        return createJsonResponse(type, status, body, null);
+    }
+
+    public static String createJsonResponse(String type, int status, String body, Long version) {
+        return createJsonResponse(type, status, body, version, null);
+    }
+
+    public static String createJsonResponse(String type, int status, String body, Long version, String encoding) {
 
-        Response r = new Response(type, status, body);
-        return new Gson().toJson(r);
+        Response r = new Response(type, status, body, version, encoding);
+        return gson.toJson(r);
+    }
+
+    /**
+     * Returns the response encoded in a message on a response link.
+     */
+    public static Response parseResponse(String message) {
+        return gson.fromJson(message, Response.class);
+    }
+
+    /**
+     * Returns the request encoded in a message on a request link.
+     */
+    public static Request parseRequest(String message) {
+        return gson.fromJson(message, Request.class);
+    }
+
+    /**
+     * Returns the invalidation encoded in a message on an invalidation link.
+     */
+    public static Invalidation parseInvalidation(String message) {
+        return gson.fromJson(message, Invalidation.class);
     }
 
     private static boolean isSubsetOf(ArrayList<String> one, ArrayList<String> two) {
@@ -81,7 +152,27 @@ public class Utils {
 
             // If we're at the end of the recursive trail, add this info to the resulting hashmap
             String combinedPath = path.stream().reduce((a, b) -> a + "/" + b).get();
-            result.put(combinedPath, new Gson().fromJson(body, LinkDescriptor.class));
+
+            if(combinedPath.equals(createCoalescedLink(path.get(0)))) {
+                throw new IllegalArgumentException("Link " + combinedPath + " is reserved for coalesced messages");
+            }
+            LinkDescriptor descriptor = gson.fromJson(body, LinkDescriptor.class);
+
+            if(descriptor.getSchema() != null) {
+                // Throws if the schema is malformed
+                LinkSchema.parse(descriptor.getSchema());
+            }
+
+            if(descriptor.getQos() != null && (descriptor.getQos() < 0 || descriptor.getQos() > 2)) {
+                throw new IllegalArgumentException("QoS of link " + combinedPath + " must be 0, 1 or 2");
+            }
+
+            if(descriptor.getCompression() != null && !Compression.isSupported(descriptor.getCompression())) {
+                throw new IllegalArgumentException("Unknown compression " + descriptor.getCompression() + " of link "
+                        + combinedPath);
+            }
+
+            result.put(combinedPath, descriptor);
 
             return result;
         }
@@ -124,7 +215,7 @@ public class Utils {
         }
 
         for (JsonElement x : requestsJson) {
-           LinkRequestDescriptor request = new Gson().fromJson(x, LinkRequestDescriptor.class);
+           LinkRequestDescriptor request = gson.fromJson(x, LinkRequestDescriptor.class);
 
            if(request.getType() == null) {
                throw new IllegalArgumentException("Must have type fields specified in request");
@@ -134,6 +225,11 @@ public class Utils {
                throw new IllegalArgumentException("Must have link field specified in request");
            }
 
+           if(request.getSchema() != null) {
+               // Throws if the schema is malformed
+               LinkSchema.parse(request.getSchema());
+           }
+
            // Request now has fields type, link, and required
             requests.add(request);
         }
@@ -0,0 +1,230 @@
+package vizier;
+
+import utils.Utils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Packs the messages published on a set of links of a node into one envelope, published on end_point/coalesced, so that
+ * a control loop publishing one small message per robot per tick costs the broker one PUBLISH per tick rather than one
+ * per robot.  Receiving transports unpack envelopes and dispatch each message to the subscribers of its own link, so
+ * subscribers cannot tell coalesced messages apart.
+ *
+ * An envelope starts with the header bytes 'V', 'Z', 'C', 1, followed by a sequence of messages, each framed as the
+ * length of its topic (unsigned 16 bits, big-endian), the topic in UTF-8, the length of its payload (32 bits,
+ * big-endian) and the payload.  Receivers only unpack payloads that start with the header, and only dispatch messages on
+ * links of the endpoint that published the envelope.  Nodes cannot declare a link named coalesced.
+ */
+class Coalescer {
+
+    // Envelopes are published early once they reach this size, so that a long window cannot build a message larger
+    // than brokers accept.
+    private static final int MAX_ENVELOPE = 32 * 1024;
+
+    private static final String ENVELOPE_SUFFIX = "/coalesced";
+
+    // Starts every envelope, so that anything else published on an envelope topic is dispatched as it is.
+    private static final byte[] HEADER = { 'V', 'Z', 'C', 1 };
+
+    private final Transport transport;
+    private final String envelopeTopic;
+    private final long window;
+
+    // Encoded topic of each coalesced link by ID, or null for links that are published individually.
+    private final byte[][] topics;
+
+    // The envelope being built.  Guarded by this.
+    private byte[] buffer = Arrays.copyOf(HEADER, 1024);
+    private int size = HEADER.length;
+    private int qos;
+    private ScheduledFuture<?> scheduled;
+
+    /**
+     * @param transport Transport on which envelopes are published.
+     * @param endpoint End point of the node publishing the links.
+     * @param table Link table of the node.
+     * @param links Links to coalesce.
+     * @param window Time after the first message of an envelope at which the envelope is published, in milliseconds.  If
+     *               0, envelopes are only published by flush().
+     */
+    Coalescer(Transport transport, String endpoint, LinkTable table, Collection<LinkHandle> links, long window) {
+        this.transport = transport;
+        this.envelopeTopic = Utils.createCoalescedLink(endpoint);
+        this.window = window;
+        this.topics = new byte[table.size()][];
+
+        for (LinkHandle x : links) {
+            this.topics[x.getId()] = x.getLink().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Returns true if messages on the link are coalesced.
+     */
+    boolean accepts(LinkHandle link) {
+        return this.topics[link.getId()] != null;
+    }
+
+    /**
+     * Adds a message on a coalesced link to the current envelope.  The envelope is published with the highest QoS of
+     * its messages, and never retained.
+     */
+    synchronized void add(LinkHandle link, byte[] payload, PublishOptions options) {
+        byte[] topic = this.topics[link.getId()];
+        int length = 2 + topic.length + 4 + payload.length;
+
+        if(this.size > HEADER.length && this.size + length > MAX_ENVELOPE) {
+            this.flush();
+        }
+
+        if(this.size + length > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(2 * this.buffer.length, this.size + length));
+        }
+
+        ByteBuffer out = ByteBuffer.wrap(this.buffer, this.size, length);
+        out.putShort((short) topic.length).put(topic).putInt(payload.length).put(payload);
+        this.size += length;
+        this.qos = Math.max(this.qos, options.getQos());
+
+        if(this.window > 0 && this.scheduled == null) {
+            try {
+                this.scheduled = this.transport.getRuntime().getScheduler().schedule(this::flush, this.window,
+                        TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down.  The envelope is published by the final flush().
+            }
+        }
+    }
+
+    /**
+     * Publishes the current envelope, if it contains any messages.  Envelopes are published while holding the lock, so
+     * that they go out in the order in which they were built.
+     */
+    synchronized void flush() {
+        if(this.scheduled != null) {
+            this.scheduled.cancel(false);
+            this.scheduled = null;
+        }
+
+        if(this.size == HEADER.length) {
+            return;
+        }
+
+        byte[] envelope = Arrays.copyOf(this.buffer, this.size);
+        PublishOptions options = PublishOptions.of(this.qos, false);
+        this.size = HEADER.length;
+        this.qos = 0;
+
+        if(options == PublishOptions.DEFAULT) {
+            this.transport.publish(this.envelopeTopic, envelope);
+        } else {
+            this.transport.publish(this.envelopeTopic, envelope, options);
+        }
+    }
+
+    /**
+     * Returns true if the payload is an envelope published on the envelope topic of an end point.
+     */
+    static boolean isEnvelope(String topic, byte[] payload) {
+        if(!topic.endsWith(ENVELOPE_SUFFIX) || topic.indexOf('/') != topic.length() - ENVELOPE_SUFFIX.length()
+                || payload.length < HEADER.length) {
+            return false;
+        }
+
+        for (int i = 0; i < HEADER.length; i++) {
+            if(payload[i] != HEADER[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the envelope topic that must also be subscribed for a topic filter to receive coalesced messages, or null
+     * if there is none.  Links that carry the vizier protocol itself, such as responses, are never coalesced.  Filters
+     * that already match the envelope topic, such as end_point/#, need none, since subscribing the envelope topic as
+     * well would have the broker deliver each envelope twice.
+     */
+    static String envelopeFilter(String filter) {
+        int end = filter.indexOf('/');
+        if(end < 0 || filter.startsWith("#")) {
+            return null;
+        }
+
+        String endpoint = filter.substring(0, end);
+        String rest = filter.substring(end);
+        if(rest.startsWith("/requests") || rest.startsWith("/responses/") || rest.startsWith("/invalidations")) {
+            return null;
+        }
+
+        String envelope = Utils.createCoalescedLink(endpoint);
+        return matches(filter, envelope) ? null : envelope;
+    }
+
+    // Returns true if the topic filter matches the topic, with the MQTT wildcards.
+    private static boolean matches(String filter, String topic) {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+
+        for (int i = 0; i < filterLevels.length; i++) {
+            if(filterLevels[i].equals("#")) {
+                return true;
+            }
+            if(i >= topicLevels.length || !(filterLevels[i].equals("+") || filterLevels[i].equals(topicLevels[i]))) {
+                return false;
+            }
+        }
+
+        return filterLevels.length == topicLevels.length;
+    }
+
+    /**
+     * Passes each message of an envelope to the consumer, along with its topic.  Messages on links of other end points
+     * are skipped, as is the rest of a malformed envelope.
+     *
+     * @param topic The topic on which the envelope arrived.
+     * @param envelope The envelope, including its header.
+     * @param consumer Called with the topic and payload of each message.
+     */
+    static void unpack(String topic, byte[] envelope, BiConsumer<String, byte[]> consumer) {
+        // Includes the trailing slash.
+        String prefix = topic.substring(0, topic.length() - ENVELOPE_SUFFIX.length() + 1);
+        ByteBuffer in = ByteBuffer.wrap(envelope, HEADER.length, envelope.length - HEADER.length);
+
+        try {
+            while (in.hasRemaining()) {
+                byte[] inner = new byte[checkLength(in, in.getShort() & 0xFFFF)];
+                in.get(inner);
+                byte[] payload = new byte[checkLength(in, in.getInt())];
+                in.get(payload);
+
+                String link = new String(inner, StandardCharsets.UTF_8);
+                if(link.startsWith(prefix)) {
+                    consumer.accept(link, payload);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            Logger.getGlobal().log(Level.WARNING, "Malformed envelope on topic " + topic, e);
+        }
+    }
+
+    // Checked before allocating, so that a corrupt length cannot allocate more than the envelope holds.
+    private static int checkLength(ByteBuffer in, int length) {
+        if(length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,96 @@
+package vizier;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds only the most recent message on a link.  Useful for high-rate STREAM links when the consumer only cares about
+ * the current value (e.g., robot poses), since older messages are overwritten instead of building up a backlog.
+ *
+ * Each message is tagged with a sequence number, so that the consumer can tell whether anything arrived since its last
+ * read.  Reads do not allocate.  Intended for a single consumer.
+ *
+ * @param <T> Type of the held messages.
+ */
+public class LatestValue<T> {
+
+    private final AtomicReference<Entry<T>> latest = new AtomicReference<>();
+
+    // Sequence number of the last value returned to the consumer.
+    private volatile long lastRead = 0;
+
+    /**
+     * Replaces the held value.
+     *
+     * @param value The new value.
+     */
+    public void set(T value) {
+        Entry<T> current;
+        Entry<T> next;
+        do {
+            current = this.latest.get();
+            next = new Entry<>(value, current == null ? 1 : current.sequence + 1);
+        } while (!this.latest.compareAndSet(current, next));
+    }
+
+    /**
+     * Returns the newest value, or null if nothing has arrived yet.  Marks the value as read.
+     */
+    public T get() {
+        Entry<T> current = this.latest.get();
+
+        if(current == null) {
+            return null;
+        }
+
+        this.lastRead = current.sequence;
+        return current.value;
+    }
+
+    /**
+     * Returns the newest value if it arrived since the last read, or null otherwise.  Marks the value as read.
+     */
+    public T poll() {
+        Entry<T> current = this.latest.get();
+
+        if(current == null || current.sequence == this.lastRead) {
+            return null;
+        }
+
+        this.lastRead = current.sequence;
+        return current.value;
+    }
+
+    /**
+     * Returns true if a value arrived since the last read.
+     */
+    public boolean hasUpdate() {
+        return this.getSequence() != this.lastRead;
+    }
+
+    /**
+     * Returns the sequence number of the newest value.  Starts at 1 for the first value, and is 0 if nothing has
+     * arrived yet.
+     */
+    public long getSequence() {
+        Entry<T> current = this.latest.get();
+        return current == null ? 0 : current.sequence;
+    }
+
+    /**
+     * Returns the sequence number of the last value that was read.
+     */
+    public long getLastReadSequence() {
+        return this.lastRead;
+    }
+
+    private static class Entry<T> {
+
+        final T value;
+        final long sequence;
+
+        Entry(T value, long sequence) {
+            this.value = value;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package vizier;
+
+import utils.LinkSchema;
+
+/**
+ * A link of a node, resolved once from its name.  Handles are obtained from VizierNode.getHandle() and carry the dense
+ * ID of the link in the node's LinkTable, along with what the node may do with it, so that publishing, putting and
+ * getting through a handle neither hashes the link name nor searches the permission sets.
+ */
+public final class LinkHandle {
+
+    private final LinkTable table;
+    private final int id;
+    private final String link;
+    private final String type;
+    private final LinkSchema schema;
+    private final PublishOptions publishOptions;
+
+    final boolean puttable;
+    final boolean publishable;
+    final boolean gettable;
+    final boolean subscribable;
+
+    LinkHandle(LinkTable table, int id, String link, String type, LinkSchema schema, PublishOptions publishOptions,
+               boolean puttable, boolean publishable, boolean gettable, boolean subscribable) {
+        this.table = table;
+        this.id = id;
+        this.link = link;
+        this.type = type;
+        this.schema = schema;
+        this.publishOptions = publishOptions;
+        this.puttable = puttable;
+        this.publishable = publishable;
+        this.gettable = gettable;
+        this.subscribable = subscribable;
+    }
+
+    /**
+     * Returns the table to which this handle belongs.
+     */
+    LinkTable getTable() {
+        return this.table;
+    }
+
+    /**
+     * Returns the ID of the link, from 0 to the size of its table.
+     */
+    public int getId() {
+        return this.id;
+    }
+
+    /**
+     * Returns the name of the link (e.g., node/data).
+     */
+    public String getLink() {
+        return this.link;
+    }
+
+    /**
+     * Returns the type of the link, DATA or STREAM.
+     */
+    public String getType() {
+        return this.type;
+    }
+
+    /**
+     * Returns the binary schema of the link, or null if it does not declare one.
+     */
+    public LinkSchema getSchema() {
+        return this.schema;
+    }
+
+    /**
+     * Returns the QoS and retain flag with which the node publishes messages on a STREAM link, or responses to GET
+     * requests for a DATA link.  Declared by the qos and retain fields of the link in the node descriptor.  Without
+     * them, DATA links use QoS 1 so that responses are not lost, and STREAM links use QoS 0.  Responses are control
+     * traffic, published ahead of queued stream messages.
+     */
+    public PublishOptions getPublishOptions() {
+        return this.publishOptions;
+    }
+
+    /**
+     * Returns true if the link is a DATA link of the node.
+     */
+    public boolean isPuttable() {
+        return this.puttable;
+    }
+
+    /**
+     * Returns true if the link is a STREAM link of the node.
+     */
+    public boolean isPublishable() {
+        return this.publishable;
+    }
+
+    /**
+     * Returns true if the link is a DATA link requested by the node.
+     */
+    public boolean isGettable() {
+        return this.gettable;
+    }
+
+    /**
+     * Returns true if the link is a STREAM link requested by the node.
+     */
+    public boolean isSubscribable() {
+        return this.subscribable;
+    }
+
+    @Override
+    public String toString() {
+        return this.link;
+    }
+}
@@ -0,0 +1,118 @@
+package vizier;
+
+import utils.LinkDescriptor;
+import utils.LinkRequestDescriptor;
+import utils.LinkSchema;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Immutable table of the links of a node, compiled from its parsed descriptor.  Each link, whether the node's own or
+ * requested from another node, is assigned a dense integer ID, so that per-link state can be kept in arrays indexed by
+ * the ID rather than in maps keyed by the link name.
+ */
+public class LinkTable {
+
+    private final LinkHandle[] handles;
+    private final Map<String, LinkHandle> byLink;
+
+    /**
+     * @param links The node's own links, as parsed from its descriptor.
+     * @param requests The links requested by the node.
+     */
+    LinkTable(Map<String, LinkDescriptor> links, List<LinkRequestDescriptor> requests) {
+
+        // Collect the links in a stable order: the node's own links by name, then the requested links in order.
+        Map<String, String> types = new LinkedHashMap<>();
+        Map<String, String> schemas = new HashMap<>();
+        Map<String, PublishOptions> options = new HashMap<>();
+        Set<String> own = new HashSet<>();
+        Set<String> requested = new HashSet<>();
+
+        new TreeMap<>(links).forEach((link, ld) -> {
+            types.put(link, ld.getType());
+            own.add(link);
+            if(ld.getSchema() != null) {
+                schemas.put(link, ld.getSchema());
+            }
+            options.put(link, publishOptions(ld));
+        });
+
+        for (LinkRequestDescriptor x : requests) {
+            types.putIfAbsent(x.getLink(), x.getType());
+            requested.add(x.getLink());
+            if(x.getSchema() != null) {
+                schemas.put(x.getLink(), x.getSchema());
+            }
+        }
+
+        this.handles = new LinkHandle[types.size()];
+        Map<String, LinkHandle> byLink = new HashMap<>();
+
+        int id = 0;
+        for (Map.Entry<String, String> x : types.entrySet()) {
+            String link = x.getKey();
+            String type = x.getValue();
+            boolean data = "DATA".equals(type);
+            boolean stream = "STREAM".equals(type);
+            String schema = schemas.get(link);
+
+            LinkHandle handle = new LinkHandle(this, id, link, type, schema == null ? null : LinkSchema.parse(schema),
+                    options.getOrDefault(link, PublishOptions.DEFAULT), own.contains(link) && data, own.contains(link) && stream,
+                    requested.contains(link) && data, requested.contains(link) && stream);
+
+            this.handles[id++] = handle;
+            byLink.put(link, handle);
+        }
+
+        this.byLink = Collections.unmodifiableMap(byLink);
+    }
+
+    /**
+     * Returns the options with which the node publishes on one of its links.  Responses to GET requests are control
+     * traffic, and are never retained, as each is published on its own response link.
+     */
+    private static PublishOptions publishOptions(LinkDescriptor ld) {
+        boolean data = "DATA".equals(ld.getType());
+        int qos = ld.getQos() != null ? ld.getQos() : (data ? 1 : 0);
+        boolean retain = !data && Boolean.TRUE.equals(ld.getRetain());
+
+        return PublishOptions.of(qos, retain, data);
+    }
+
+    /**
+     * Returns the handle of a link, or null if the link is not in the table.
+     */
+    public LinkHandle get(String link) {
+        return this.byLink.get(link);
+    }
+
+    /**
+     * Returns the handle of the link with the given ID.
+     */
+    public LinkHandle get(int id) {
+        return this.handles[id];
+    }
+
+    /**
+     * Returns the number of links in the table.  IDs range from 0 to size() - 1.
+     */
+    public int size() {
+        return this.handles.length;
+    }
+
+    /**
+     * Returns the names of the links whose handles satisfy a predicate.
+     */
+    Set<String> linksWhere(Predicate<LinkHandle> predicate) {
+        Set<String> result = new HashSet<>();
+        for (LinkHandle x : this.handles) {
+            if(predicate.test(x)) {
+                result.add(x.getLink());
+            }
+        }
+
+        return Collections.unmodifiableSet(result);
+    }
+}
@@ -0,0 +1,123 @@
+package vizier;
+
+/**
+ * In-process message hub for LoopbackTransports.  Published payloads are handed to the subscribed handlers by reference,
+ * with no serialization, sockets or broker in between.  Supports the same topic wildcards as MQTT.
+ */
+public class LoopbackBroker {
+
+    // The default broker, created by the first transport that needs it and shut down when the last one is.  Guarded
+    // by the class.
+    private static LoopbackBroker defaultBroker;
+    private static int defaultReferences;
+
+    private final TopicTrie<MessageHandler> subscriptions = new TopicTrie<>();
+    private final VizierRuntime runtime;
+    private final TopicTrie.Delivery<MessageHandler> delivery = this::deliver;
+
+    /**
+     * @param runtime Runtime on which subscribed handlers run.
+     */
+    public LoopbackBroker(VizierRuntime runtime) {
+        this.runtime = runtime;
+    }
+
+    /**
+     * Returns the broker shared by all LoopbackTransports created without an explicit broker, creating it if none is
+     * running.  It runs until the last of those transports is shut down, or until shutdownDefault().
+     */
+    public static synchronized LoopbackBroker getDefault() {
+        if(defaultBroker == null) {
+            defaultBroker = new LoopbackBroker(new VizierRuntime());
+        }
+
+        return defaultBroker;
+    }
+
+    /**
+     * Stops the default broker, if it is running, whether or not transports still use it.  A later getDefault() or
+     * LoopbackTransport() creates a new one.  Call before MATLAB's clear java, so that its threads do not outlive the
+     * class.
+     */
+    public static void shutdownDefault() {
+        LoopbackBroker broker;
+
+        synchronized (LoopbackBroker.class) {
+            broker = defaultBroker;
+            defaultBroker = null;
+            defaultReferences = 0;
+        }
+
+        if(broker != null) {
+            broker.shutdown();
+        }
+    }
+
+    /**
+     * Returns the default broker, counting a reference to it that is given back by releaseDefault().
+     */
+    static synchronized LoopbackBroker acquireDefault() {
+        LoopbackBroker broker = getDefault();
+        defaultReferences++;
+        return broker;
+    }
+
+    /**
+     * Gives back a reference from acquireDefault(), and stops the broker if it was the last.  Does nothing if the
+     * broker has already been replaced through shutdownDefault().
+     */
+    static void releaseDefault(LoopbackBroker broker) {
+        synchronized (LoopbackBroker.class) {
+            if(broker != defaultBroker || --defaultReferences > 0) {
+                return;
+            }
+
+            defaultBroker = null;
+        }
+
+        broker.shutdown();
+    }
+
+    /**
+     * Returns the runtime on which subscribed handlers run.
+     */
+    public VizierRuntime getRuntime() {
+        return this.runtime;
+    }
+
+    /**
+     * Delivers a payload to every handler whose topic filter matches the topic.  The messages of an envelope of
+     * coalesced messages (see Coalescer) are delivered as though each had been published on its own.
+     *
+     * Returns the number of handlers to which the payload was delivered.
+     */
+    int publish(String topic, byte[] payload) {
+        if(Coalescer.isEnvelope(topic, payload)) {
+            int[] deliveries = new int[1];
+            Coalescer.unpack(topic, payload, (t, p) -> deliveries[0] += this.publish(t, p));
+            return deliveries[0];
+        }
+
+        this.runtime.getMetrics().messageReceived(topic);
+        return this.subscriptions.dispatch(topic, payload, this.delivery);
+    }
+
+    void subscribe(String topic, MessageHandler handler) {
+        this.subscriptions.add(topic, handler);
+    }
+
+    void unsubscribe(String topic, MessageHandler handler) {
+        this.subscriptions.remove(topic, handler);
+    }
+
+    /**
+     * Stops the runtime of this broker.
+     */
+    public void shutdown() {
+        this.runtime.shutdown();
+    }
+
+    private void deliver(MessageHandler handler, String topic, byte[] payload) {
+        this.runtime.deliver(handler, topic, payload);
+    }
+}
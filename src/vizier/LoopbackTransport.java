@@ -0,0 +1,99 @@
+package vizier;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Transport between vizier nodes in the same JVM.  Messages go through a LoopbackBroker in memory, so a simulator and a
+ * controller running in one MATLAB session communicate without an MQTT broker.  Also allows the vizier protocol to be
+ * exercised without a broker.
+ */
+public class LoopbackTransport implements Transport {
+
+    private final LoopbackBroker broker;
+    private final boolean sharesDefault;
+    private final AtomicBoolean shutdown = new AtomicBoolean();
+
+    // Handlers subscribed through this transport, so that they can be removed without affecting other transports.
+    private final Map<String, List<MessageHandler>> handlers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a transport on the default broker of the JVM.  The broker is shut down along with the last transport
+     * using it.
+     */
+    public LoopbackTransport() {
+        this(LoopbackBroker.acquireDefault(), true);
+    }
+
+    /**
+     * @param broker Broker through which messages are exchanged.  Left running when this transport is shut down.
+     */
+    public LoopbackTransport(LoopbackBroker broker) {
+        this(broker, false);
+    }
+
+    private LoopbackTransport(LoopbackBroker broker, boolean sharesDefault) {
+        this.broker = broker;
+        this.sharesDefault = sharesDefault;
+    }
+
+    @Override
+    public boolean publish(String topic, byte[] payload) {
+        VizierMetrics metrics = this.getMetrics();
+        long queuedAt = System.nanoTime();
+
+        metrics.messageQueued();
+        this.broker.publish(topic, payload);
+        metrics.messageSent(queuedAt);
+        return true;
+    }
+
+    @Override
+    public void subscribeWithHandler(String topic, MessageHandler handler) {
+        this.handlers.computeIfAbsent(topic, (k) -> new CopyOnWriteArrayList<>()).add(handler);
+        this.broker.subscribe(topic, handler);
+    }
+
+    @Override
+    public void unsubscribe(String topic) {
+        List<MessageHandler> removed = this.handlers.remove(topic);
+
+        if(removed != null) {
+            for (MessageHandler handler : removed) {
+                this.broker.unsubscribe(topic, handler);
+            }
+        }
+    }
+
+    @Override
+    public void unsubscribe(String topic, MessageHandler handler) {
+        List<MessageHandler> subscribed = this.handlers.get(topic);
+
+        if(subscribed != null && subscribed.remove(handler)) {
+            this.broker.unsubscribe(topic, handler);
+        }
+    }
+
+    @Override
+    public VizierRuntime getRuntime() {
+        return this.broker.getRuntime();
+    }
+
+    /**
+     * Removes all subscriptions made through this transport.  The broker and its runtime keep running for other
+     * transports, except that the default broker is shut down once no transport uses it.
+     */
+    @Override
+    public void shutdown() {
+        for (String topic : this.handlers.keySet()) {
+            this.unsubscribe(topic);
+        }
+
+        if(this.sharesDefault && this.shutdown.compareAndSet(false, true)) {
+            LoopbackBroker.releaseDefault(this.broker);
+        }
+    }
+}
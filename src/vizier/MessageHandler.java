@@ -0,0 +1,14 @@
+package vizier;
+
+/**
+ * Receives raw messages from a transport.  The payload is passed exactly as it was received, without any decoding.
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+    /**
+     * @param topic The topic on which the message arrived.
+     * @param payload The payload of the message.  Must not be modified.
+     */
+    void handle(String topic, byte[] payload);
+}
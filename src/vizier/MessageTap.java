@@ -0,0 +1,9 @@
+package vizier;
+
+/**
+ * A handler that runs on the thread that received the message, such as the MQTT callback thread, rather than on a
+ * stripe of the runtime.  Saves a task per message for handlers that only copy the message somewhere, but holds up the
+ * delivery of every later message while it runs, so it must never block.
+ */
+interface MessageTap extends MessageHandler {
+}
@@ -0,0 +1,187 @@
+package vizier;
+
+import utils.LinkSchema;
+import utils.PackedReader;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscription to a numeric STREAM link that is read in bulk.  Incoming messages are queued undecoded along with their
+ * arrival time.  A single drain() call then decodes the whole backlog into primitive arrays, so that a MATLAB loop only
+ * crosses into Java a few times per tick regardless of how many messages arrived.
+ */
+public class NumericSubscription {
+
+    private final LinkSchema schema;
+    private final PackedReader reader;
+    // Bounded, so that a consumer that stops draining does not exhaust the heap.  The oldest messages are dropped.
+    private final RingBufferQueue<Sample> backlog
+            = new RingBufferQueue<>(Transport.DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST);
+    // Messages whose size does not match the schema.  Rejected on arrival, so that drain() never fails part way.
+    private final AtomicLong malformed = new AtomicLong();
+    // Message taken from the backlog that did not fit in the caller's row, returned first by the next drain.
+    private Sample pending;
+
+    // Buffers filled by drain().  Rows are reallocated only if a message has more values than fit.
+    private final double[][] values;
+    private final double[] timestamps;
+
+    /**
+     * @param schema Schema of the messages on the link.
+     * @param maxBatch Maximum number of messages returned by one call to drain().
+     */
+    NumericSubscription(LinkSchema schema, int maxBatch) {
+        this.schema = schema;
+        this.reader = schema.newReader();
+
+        int rowValues = schema.getRows() > 0 ? schema.getRows() * schema.getRowLength() : schema.getRowLength();
+        this.values = new double[maxBatch][rowValues];
+        this.timestamps = new double[maxBatch];
+    }
+
+    void accept(ByteBuffer payload) {
+        int rows;
+        try {
+            rows = this.schema.rowsIn(payload.remaining());
+        } catch (IllegalArgumentException e) {
+            this.malformed.incrementAndGet();
+            return;
+        }
+
+        this.backlog.offer(new Sample(System.currentTimeMillis(), payload, rows));
+    }
+
+    /**
+     * Returns the number of messages waiting to be drained.
+     */
+    public int available() {
+        return this.backlog.size() + (this.pending == null ? 0 : 1);
+    }
+
+    /**
+     * Returns the number of messages dropped because they were not drained in time.
+     */
+    public long getDroppedCount() {
+        return this.backlog.getDroppedCount();
+    }
+
+    /**
+     * Returns the number of messages discarded on arrival because their size did not match the schema.
+     */
+    public long getMalformedCount() {
+        return this.malformed.get();
+    }
+
+    /**
+     * Returns the schema of the messages on the link.
+     */
+    public LinkSchema getSchema() {
+        return this.schema;
+    }
+
+    /**
+     * Decodes up to maxBatch waiting messages into the buffers returned by getValues() and getTimestamps().  Row i of
+     * the values holds the values of message i in row-major order, and entry i of the timestamps holds its arrival
+     * time in milliseconds since the epoch.
+     *
+     * Returns the number of messages drained.
+     */
+    public int drain() {
+        int count = 0;
+
+        while (count < this.values.length) {
+            Sample sample = this.take();
+            if(sample == null) {
+                break;
+            }
+
+            this.reader.wrap(sample.payload);
+            int needed = sample.rows * this.reader.getRowLength();
+            if(this.values[count].length < needed) {
+                this.values[count] = new double[needed];
+            }
+
+            this.reader.copyTo(this.values[count]);
+            this.timestamps[count] = sample.timestamp;
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Decodes waiting messages into caller-provided arrays.  Row i of out receives the values of message i in row-major
+     * order, and timestamps[i] its arrival time in milliseconds since the epoch.
+     *
+     * @param out Destination for the values.  At most out.length messages are drained.
+     * @param timestamps Destination for the arrival times.  Must be at least as long as out.
+     * Returns the number of messages drained.
+     * Stops early at a message that does not fit in its row of out, which stays queued.  Throws
+     * IndexOutOfBoundsException, without draining anything, if that is the first message.
+     */
+    public int drain(double[][] out, double[] timestamps) {
+        int count = 0;
+
+        while (count < out.length) {
+            Sample sample = this.take();
+            if(sample == null) {
+                break;
+            }
+
+            int needed = sample.rows * this.schema.getRowLength();
+            if(out[count].length < needed) {
+                // Kept, so that a short row does not lose the message.
+                this.pending = sample;
+                if(count > 0) {
+                    break;
+                }
+                throw new IndexOutOfBoundsException(String.format("Row %d holds %d values but its message has %d",
+                        count, out[count].length, needed));
+            }
+
+            this.reader.wrap(sample.payload).copyTo(out[count]);
+            timestamps[count] = sample.timestamp;
+            count++;
+        }
+
+        return count;
+    }
+
+    private Sample take() {
+        Sample sample = this.pending;
+        if(sample == null) {
+            return this.backlog.poll();
+        }
+
+        this.pending = null;
+        return sample;
+    }
+
+    /**
+     * Returns the value buffer filled by drain().  Only the first rows, as returned by drain(), are valid.
+     */
+    public double[][] getValues() {
+        return this.values;
+    }
+
+    /**
+     * Returns the timestamp buffer filled by drain().  Only the first entries, as returned by drain(), are valid.
+     */
+    public double[] getTimestamps() {
+        return this.timestamps;
+    }
+
+    private static class Sample {
+
+        final double timestamp;
+        final ByteBuffer payload;
+        final int rows;
+
+        Sample(double timestamp, ByteBuffer payload, int rows) {
+            this.timestamp = timestamp;
+            this.payload = payload;
+            this.rows = rows;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package vizier;
+
+/**
+ * Determines what happens when a message is added to a full, bounded queue.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Wait for space to become available, up to a timeout.  The message is dropped if the timeout elapses.
+     */
+    BLOCK,
+
+    /**
+     * Evict the oldest queued message to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Refuse the new message, leaving the queue unchanged.
+     */
+    REJECT
+}
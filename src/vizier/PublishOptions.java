@@ -0,0 +1,89 @@
+package vizier;
+
+/**
+ * MQTT quality of service and retain flag with which a message is published, and whether it is control traffic.
+ * Instances are shared: of() returns the same instance for the same settings, so DEFAULT can be recognized by identity.
+ */
+public final class PublishOptions {
+
+    private static final PublishOptions[] INSTANCES = new PublishOptions[12];
+
+    static {
+        for (int i = 0; i < INSTANCES.length; i++) {
+            INSTANCES[i] = new PublishOptions(i / 4, (i & 2) != 0, (i & 1) != 0);
+        }
+    }
+
+    /**
+     * QoS 0, not retained and not control traffic: the message is sent at most once, as used for high-rate STREAM
+     * links.
+     */
+    public static final PublishOptions DEFAULT = of(0, false);
+
+    /**
+     * QoS 0 control traffic, as used for requests, which are retried until answered.
+     */
+    public static final PublishOptions CONTROL = of(0, false, true);
+
+    private final int qos;
+    private final boolean retained;
+    private final boolean control;
+
+    private PublishOptions(int qos, boolean retained, boolean control) {
+        this.qos = qos;
+        this.retained = retained;
+        this.control = control;
+    }
+
+    /**
+     * Returns the options for a message that is not control traffic.
+     *
+     * @param qos MQTT quality of service: 0 (at most once), 1 (at least once) or 2 (exactly once).
+     * @param retained Whether the broker keeps the message and sends it to later subscribers of the topic.
+     */
+    public static PublishOptions of(int qos, boolean retained) {
+        return of(qos, retained, false);
+    }
+
+    /**
+     * Returns the options for the given settings.
+     *
+     * @param qos MQTT quality of service: 0 (at most once), 1 (at least once) or 2 (exactly once).
+     * @param retained Whether the broker keeps the message and sends it to later subscribers of the topic.
+     * @param control Whether the message is control traffic, such as a request or a response, which is published ahead
+     *                of queued stream messages.
+     */
+    public static PublishOptions of(int qos, boolean retained, boolean control) {
+        if(qos < 0 || qos > 2) {
+            throw new IllegalArgumentException("QoS must be 0, 1 or 2");
+        }
+
+        return INSTANCES[4 * qos + (retained ? 2 : 0) + (control ? 1 : 0)];
+    }
+
+    /**
+     * Returns the MQTT quality of service.
+     */
+    public int getQos() {
+        return this.qos;
+    }
+
+    /**
+     * Returns whether the message is retained by the broker.
+     */
+    public boolean isRetained() {
+        return this.retained;
+    }
+
+    /**
+     * Returns whether the message is control traffic, which is published ahead of queued stream messages.
+     */
+    public boolean isControl() {
+        return this.control;
+    }
+
+    @Override
+    public String toString() {
+        return "QoS " + this.qos + (this.retained ? ", retained" : "") + (this.control ? ", control" : "");
+    }
+}
@@ -0,0 +1,234 @@
+package vizier;
+
+import utils.Compression;
+import utils.Response;
+import utils.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Issues vizier requests asynchronously.  Rather than subscribing to a fresh response link for every request, the
+ * engine subscribes once to remoteEndpoint/responses/+ for each remote endpoint and matches incoming responses to
+ * outstanding requests by their message ID.
+ */
+class RequestEngine {
+
+    // Longest wait between attempts of a request with a deadline, in milliseconds.
+    private static final int MAX_BACKOFF = 2000;
+
+    private final Transport transport;
+    private final ScheduledExecutorService scheduler;
+    private final Logger logger = Logger.getGlobal();
+    private final VizierMetrics metrics;
+
+    // Outstanding requests, keyed by message ID.
+    private final ConcurrentHashMap<String, PendingRequest> pending = new ConcurrentHashMap<>();
+
+    // Remote endpoints for which the response wildcard has already been subscribed.
+    private final ConcurrentHashMap<String, Boolean> subscribedEndpoints = new ConcurrentHashMap<>();
+
+    /**
+     * @param transport Transport used to publish requests and receive responses.
+     * @param scheduler Executor used to schedule request retries.
+     */
+    RequestEngine(Transport transport, ScheduledExecutorService scheduler) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.metrics = transport.getMetrics();
+    }
+
+    /**
+     * Sends a request for a link to the node that owns it.  The request is republished every timeout milliseconds
+     * until a response arrives or the attempts are exhausted, in which case the returned future completes
+     * exceptionally with a TimeoutException.
+     *
+     * @param link The link for which the request is made.
+     * @param method The request method (e.g., GET).
+     * @param version For a conditional GET, the version of the link already held, or null.
+     * @param attempts Number of times to publish the request.
+     * @param timeout Time to wait for a response after each attempt, in milliseconds.
+     */
+    CompletableFuture<Response> request(String link, String method, Long version, int attempts, int timeout) {
+        return this.request(link, method, version, attempts, timeout, 0, false);
+    }
+
+    /**
+     * Sends a request for a link to the node that owns it, republishing it until a response arrives or the deadline
+     * passes, in which case the returned future completes exceptionally with a TimeoutException.  The wait between
+     * attempts starts at the given timeout and doubles after each attempt, up to MAX_BACKOFF, with random jitter so
+     * that many nodes starting together do not retry in lockstep.
+     *
+     * @param link The link for which the request is made.
+     * @param method The request method (e.g., GET).
+     * @param version For a conditional GET, the version of the link already held, or null.
+     * @param timeout Time to wait for a response after the first attempt, in milliseconds.
+     * @param deadline Value of System.nanoTime() after which the request fails.
+     */
+    CompletableFuture<Response> requestWithDeadline(String link, String method, Long version, int timeout, long deadline) {
+        return this.request(link, method, version, Integer.MAX_VALUE, timeout, deadline, true);
+    }
+
+    /**
+     * Sends a request for several links of one node in a single message.  Retried like request().
+     *
+     * @param remoteEndpoint The node that owns the links.
+     * @param links The links for which the request is made.
+     * @param method The request method (e.g., GET_BATCH).
+     * @param versions For each link, the version already held, or null.  May itself be null.
+     * @param attempts Number of times to publish the request.
+     * @param timeout Time to wait for a response after each attempt, in milliseconds.
+     */
+    CompletableFuture<Response> request(String remoteEndpoint, List<String> links, String method, List<Long> versions,
+                                        int attempts, int timeout) {
+        String messageId = Utils.createMessageId();
+        return this.send(links.toString(), remoteEndpoint, messageId,
+                Utils.createJsonRequest(messageId, links, method, versions), attempts, timeout, 0, false);
+    }
+
+    private CompletableFuture<Response> request(String link, String method, Long version, int attempts, int timeout,
+                                                long deadline, boolean backoff) {
+        String messageId = Utils.createMessageId();
+        return this.send(link, link.split("/")[0], messageId, Utils.createJsonRequest(messageId, link, method, version),
+                attempts, timeout, deadline, backoff);
+    }
+
+    private CompletableFuture<Response> send(String link, String remoteEndpoint, String messageId, String message,
+                                             int attempts, int timeout, long deadline, boolean backoff) {
+
+        // Must be subscribed to the response links before the request is sent to ensure that the response is not
+        // missed.
+        this.ensureSubscribed(remoteEndpoint);
+
+        PendingRequest request = new PendingRequest(link, Utils.createRequestLink(remoteEndpoint), message, attempts,
+                timeout, deadline, backoff);
+
+        this.pending.put(messageId, request);
+        request.future.whenComplete((r, e) -> {
+            this.pending.remove(messageId);
+            ScheduledFuture<?> retry = request.retry;
+            if (retry != null) {
+                retry.cancel(false);
+            }
+        });
+
+        this.attempt(request);
+        return request.future;
+    }
+
+    /**
+     * Cancels all outstanding requests.
+     */
+    void shutdown() {
+        for (PendingRequest request : this.pending.values()) {
+            request.future.cancel(false);
+        }
+    }
+
+    private void ensureSubscribed(String remoteEndpoint) {
+        this.subscribedEndpoints.computeIfAbsent(remoteEndpoint, (endpoint) -> {
+            this.transport.subscribeWithTopicCallback(Utils.createResponseLink(endpoint, "+"), this::handleResponse);
+            return true;
+        });
+    }
+
+    private void attempt(PendingRequest request) {
+
+        if (request.future.isDone()) {
+            return;
+        }
+
+        if (request.attemptsLeft <= 0 || (request.backoff && System.nanoTime() - request.deadline >= 0)) {
+            String msg = String.format("Could not retrieve response for link (%s)", request.link);
+            request.future.completeExceptionally(new TimeoutException(msg));
+            this.metrics.requestTimedOut();
+            return;
+        }
+
+        this.metrics.requestSent(request.attemptsLeft < request.attempts);
+        request.attemptsLeft--;
+        this.transport.publish(request.requestLink, request.message, PublishOptions.CONTROL);
+
+        try {
+            request.retry = this.scheduler.schedule(() -> this.attempt(request), request.nextDelay(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // The node is shutting down.
+            request.future.cancel(false);
+        }
+    }
+
+    /**
+     * Handles messages on remoteEndpoint/responses/+.  The final level of the topic is the message ID of the request.
+     */
+    private void handleResponse(String topic, String message) {
+
+        String messageId = topic.substring(topic.lastIndexOf('/') + 1);
+        PendingRequest request = this.pending.remove(messageId);
+
+        if (request == null) {
+            // Duplicate response to a retried request, or a response for another node.
+            return;
+        }
+
+        this.metrics.responseReceived(request.startedAt);
+
+        try {
+            request.future.complete(Compression.decompress(Utils.parseResponse(message)));
+        } catch (RuntimeException e) {
+            this.logger.log(Level.WARNING, "Could not decode response for link " + request.link, e);
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    private static class PendingRequest {
+
+        final String link;
+        final String requestLink;
+        final byte[] message;
+        final int attempts;
+        // Requests with a deadline back off between attempts.  Requests with a number of attempts do not.
+        final boolean backoff;
+        final long deadline;
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        // Value of System.nanoTime() when the request was created.
+        final long startedAt = System.nanoTime();
+
+        // Only modified from the thread currently making an attempt.
+        int attemptsLeft;
+        int timeout;
+        volatile ScheduledFuture<?> retry;
+
+        PendingRequest(String link, String requestLink, String message, int attempts, int timeout, long deadline,
+                       boolean backoff) {
+            this.link = link;
+            this.requestLink = requestLink;
+            this.message = message.getBytes(StandardCharsets.UTF_8);
+            this.attempts = attempts;
+            this.attemptsLeft = attempts;
+            this.timeout = timeout;
+            this.deadline = deadline;
+            this.backoff = backoff;
+        }
+
+        /**
+         * Returns the time to wait for a response to the current attempt, in nanoseconds, and advances the backoff.
+         * Never extends past the deadline.
+         */
+        long nextDelay() {
+            long delay = TimeUnit.MILLISECONDS.toNanos(this.timeout);
+
+            if(!this.backoff) {
+                return delay;
+            }
+
+            // Between half and all of the current timeout.
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            this.timeout = Math.min(2 * this.timeout, MAX_BACKOFF);
+
+            return Math.max(0, Math.min(delay, this.deadline - System.nanoTime()));
+        }
+    }
+}
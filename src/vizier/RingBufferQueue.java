@@ -0,0 +1,297 @@
+package vizier;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue between one producer, such as a subscription callback, and one consumer, such as a MATLAB loop.  The
+ * buffer is allocated up front and the queue never locks, so queueing a message allocates nothing and costs a few
+ * atomic operations.  When the queue is full, messages are handled according to an OverflowPolicy, so a stalled consumer
+ * cannot exhaust the heap.
+ *
+ * Only one thread may offer at a time and only one thread may wait in poll() or take() at a time; the producer may be
+ * a different thread from one message to the next, as with callbacks run by VizierRuntime.  Consumed slots are not
+ * cleared, so up to capacity consumed elements stay reachable until they are overwritten.
+ *
+ * @param <E> Type of the elements.
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+
+    // Index of the next element to consume.  Advanced by the consumer, or by the producer when dropping the oldest
+    // element, so it is only ever updated by compare-and-set.
+    private final AtomicLong head = new AtomicLong();
+    // Index of the next element to produce.  Only advanced by the producer.
+    private final AtomicLong tail = new AtomicLong();
+
+    // Threads parked waiting for an element, or for space.
+    private volatile Thread consumer;
+    private volatile Thread producer;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int highWaterMark;
+
+    /**
+     * @param capacity Maximum number of elements in the queue.  Rounded up to a power of two.
+     * @param overflowPolicy What to do with an offered element when the queue is full.  With BLOCK, offer() waits for
+     *                       space, which stalls the producer until the consumer catches up.
+     */
+    public RingBufferQueue(int capacity, OverflowPolicy overflowPolicy) {
+        if(capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) {
+            size <<= 1;
+        }
+
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.capacity = size;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Queues an element according to the overflow policy.
+     *
+     * Returns false if the element was rejected because the queue is full.
+     */
+    @Override
+    public boolean offer(E e) {
+        switch (this.overflowPolicy) {
+            case BLOCK:
+                return this.offer(e, Long.MAX_VALUE);
+            case DROP_OLDEST:
+                while (this.isFull()) {
+                    long h = this.head.get();
+                    if(this.head.compareAndSet(h, h + 1)) {
+                        this.dropped.incrementAndGet();
+                    }
+                }
+                this.append(e);
+                return true;
+            default:
+                return this.offer(e, 0);
+        }
+    }
+
+    /**
+     * Queues an element, waiting up to the given time for space regardless of the overflow policy.
+     *
+     * Returns false if there was no space in time.
+     */
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        boolean queued = this.offer(e, unit.toNanos(timeout));
+
+        if(Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        return queued;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        this.offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    private boolean offer(E e, long timeout) {
+        Objects.requireNonNull(e);
+
+        if(this.isFull() && !this.awaitSpace(timeout)) {
+            this.dropped.incrementAndGet();
+            return false;
+        }
+
+        this.append(e);
+        return true;
+    }
+
+    private boolean isFull() {
+        return this.tail.get() - this.head.get() >= this.capacity;
+    }
+
+    private void append(E e) {
+        long t = this.tail.get();
+        this.buffer.set((int) t & this.mask, e);
+        // A volatile write, so that the element is visible before the tail, and the tail before the consumer is read.
+        this.tail.set(t + 1);
+
+        int size = (int) (t + 1 - this.head.get());
+        if(size > this.highWaterMark) {
+            this.highWaterMark = size;
+        }
+
+        Thread waiting = this.consumer;
+        if(waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    // Waits until the queue is not full.  Returns false on timeout or interruption.
+    private boolean awaitSpace(long timeout) {
+        if(timeout <= 0) {
+            return false;
+        }
+
+        long deadline = System.nanoTime() + timeout;
+        this.producer = Thread.currentThread();
+        try {
+            while (this.isFull()) {
+                long remaining = timeout == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+                if(remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)));
+            }
+            return true;
+        } finally {
+            this.producer = null;
+        }
+    }
+
+    @Override
+    public E poll() {
+        while (true) {
+            long h = this.head.get();
+            if(h >= this.tail.get()) {
+                return null;
+            }
+
+            E e = this.buffer.get((int) h & this.mask);
+            // Fails if the producer dropped this element, in which case the slot may already hold a newer one.
+            if(this.head.compareAndSet(h, h + 1)) {
+                Thread waiting = this.producer;
+                if(waiting != null) {
+                    LockSupport.unpark(waiting);
+                }
+                return e;
+            }
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E e = this.poll();
+        if(e != null) {
+            return e;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        this.consumer = Thread.currentThread();
+        try {
+            while ((e = this.poll()) == null) {
+                if(Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return e;
+        } finally {
+            this.consumer = null;
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e;
+        while ((e = this.poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null) {
+            // Only returns null on timeout, which is effectively never.
+        }
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        while (true) {
+            long h = this.head.get();
+            if(h >= this.tail.get()) {
+                return null;
+            }
+
+            E e = this.buffer.get((int) h & this.mask);
+            // The element is only valid if it was not dropped while being read.
+            if(this.head.get() == h) {
+                return e;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        // Read the head first, so that the size is never negative.
+        long h = this.head.get();
+        return (int) Math.min(this.capacity, Math.max(0, this.tail.get() - h));
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return this.capacity - this.size();
+    }
+
+    /**
+     * Returns the maximum number of elements in the queue.
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Returns the number of elements dropped or rejected because the queue was full.
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Returns the largest number of elements that have been in the queue at once.
+     */
+    public int getHighWaterMark() {
+        return this.highWaterMark;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return this.drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int count = 0;
+        E e;
+        while (count < maxElements && (e = this.poll()) != null) {
+            c.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queue.  Elements dropped or consumed while the snapshot is taken may be
+     * included.  The iterator does not support removal.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>();
+        long t = this.tail.get();
+        for (long i = Math.max(this.head.get(), t - this.capacity); i < t; i++) {
+            snapshot.add(this.buffer.get((int) i & this.mask));
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+}
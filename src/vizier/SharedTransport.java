@@ -0,0 +1,94 @@
+package vizier;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One user's view of a connection shared through VizierConnections.  Tracks the handlers subscribed through it, so that
+ * unsubscribing or shutting down removes only those handlers, and the topic is only unsubscribed from the broker once
+ * no user of the connection needs it.
+ */
+class SharedTransport implements Transport {
+
+    private final VizierMqttClient client;
+    private final Runnable release;
+    private final AtomicBoolean shutdown = new AtomicBoolean();
+
+    // Handlers subscribed through this transport.
+    private final Map<String, List<MessageHandler>> handlers = new ConcurrentHashMap<>();
+
+    /**
+     * @param client The shared client.
+     * @param release Called once when this transport is shut down.
+     */
+    SharedTransport(VizierMqttClient client, Runnable release) {
+        this.client = client;
+        this.release = release;
+    }
+
+    @Override
+    public boolean publish(String topic, byte[] payload) {
+        return this.client.publish(topic, payload);
+    }
+
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, PublishOptions options) {
+        return this.client.publish(topic, payload, options);
+    }
+
+    @Override
+    public void subscribeWithHandler(String topic, MessageHandler handler) {
+        this.handlers.computeIfAbsent(topic, (k) -> new CopyOnWriteArrayList<>()).add(handler);
+        this.client.subscribeWithHandler(topic, handler);
+    }
+
+    @Override
+    public void unsubscribe(String topic) {
+        List<MessageHandler> removed = this.handlers.remove(topic);
+
+        if(removed != null) {
+            for (MessageHandler handler : removed) {
+                this.client.unsubscribe(topic, handler);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> connect() {
+        return this.client.connect();
+    }
+
+    @Override
+    public void unsubscribe(String topic, MessageHandler handler) {
+        List<MessageHandler> subscribed = this.handlers.get(topic);
+
+        if(subscribed != null && subscribed.remove(handler)) {
+            this.client.unsubscribe(topic, handler);
+        }
+    }
+
+    @Override
+    public VizierRuntime getRuntime() {
+        return this.client.getRuntime();
+    }
+
+    /**
+     * Removes all subscriptions made through this transport, and closes the connection if no other transport uses it.
+     */
+    @Override
+    public void shutdown() {
+        if(!this.shutdown.compareAndSet(false, true)) {
+            return;
+        }
+
+        for (String topic : this.handlers.keySet()) {
+            this.unsubscribe(topic);
+        }
+
+        this.release.run();
+    }
+}
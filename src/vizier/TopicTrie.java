@@ -0,0 +1,270 @@
+package vizier;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of subscribers by MQTT topic filter, supporting the + (one level) and # (any remaining levels) wildcards.
+ *
+ * Filters without wildcards, such as the links of a node, are kept in a map from the filter to its subscribers, so a
+ * message on one of them is dispatched with one hash lookup and a loop over an array.  Filters with wildcards are kept
+ * in a trie with one node per level, so matching a topic against them costs time proportional to its depth rather than
+ * to the number of subscriptions.  Neither structure caches per-topic results, so one-off topics, such as response
+ * links, cost the same as any other and cannot crowd out active ones.
+ *
+ * Matching does not lock.  Subscribers are kept in copy-on-write arrays, and modifications are serialized on the trie.
+ *
+ * @param <T> Type of the subscribers.
+ */
+class TopicTrie<T> {
+
+    /**
+     * Receives each subscriber whose filter matches a dispatched topic.
+     */
+    @FunctionalInterface
+    interface Delivery<T> {
+        void deliver(T subscriber, String topic, byte[] payload);
+    }
+
+    private static final Object[] EMPTY = new Object[0];
+
+    // Subscribers of each filter without wildcards.
+    private final ConcurrentHashMap<String, Object[]> exact = new ConcurrentHashMap<>();
+
+    // Filters with wildcards.
+    private final Node root = new Node();
+
+    // Filters that currently have at least one subscriber.
+    private final Set<String> filters = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Adds a subscriber for a topic filter.  Adding a subscriber that is already present has no effect.
+     *
+     * Returns true if the filter had no subscribers before.
+     */
+    synchronized boolean add(String filter, T subscriber) {
+        Node node = null;
+        Object[] current;
+
+        if(isWildcard(filter)) {
+            node = this.root;
+            for (String level : filter.split("/", -1)) {
+                node = node.children.computeIfAbsent(level, (k) -> new Node());
+            }
+            current = node.subscribers;
+        } else {
+            current = this.exact.getOrDefault(filter, EMPTY);
+        }
+
+        for (Object x : current) {
+            if(x == subscriber) {
+                return false;
+            }
+        }
+
+        Object[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = subscriber;
+        if(node != null) {
+            node.subscribers = updated;
+        } else {
+            this.exact.put(filter, updated);
+        }
+        this.filters.add(filter);
+
+        return current.length == 0;
+    }
+
+    /**
+     * Removes a subscriber from a topic filter.
+     *
+     * Returns true if the filter has no subscribers left.
+     */
+    synchronized boolean remove(String filter, T subscriber) {
+        boolean wildcard = isWildcard(filter);
+        Node[] path = wildcard ? this.path(filter) : null;
+        Object[] current = wildcard ? (path == null ? null : path[path.length - 1].subscribers) : this.exact.get(filter);
+        if(current == null) {
+            return false;
+        }
+
+        int index = -1;
+        for (int i = 0; i < current.length; i++) {
+            if(current[i] == subscriber) {
+                index = i;
+            }
+        }
+
+        if(index < 0) {
+            return false;
+        }
+
+        Object[] updated = new Object[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+
+        if(!wildcard) {
+            if(updated.length > 0) {
+                this.exact.put(filter, updated);
+                return false;
+            }
+
+            this.exact.remove(filter);
+            this.filters.remove(filter);
+            return true;
+        }
+
+        path[path.length - 1].subscribers = updated.length == 0 ? EMPTY : updated;
+
+        if(updated.length == 0) {
+            this.filters.remove(filter);
+            this.prune(filter, path);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes all subscribers from a topic filter.
+     *
+     * Returns true if the filter had any subscribers.
+     */
+    synchronized boolean removeAll(String filter) {
+        if(!isWildcard(filter)) {
+            this.filters.remove(filter);
+            return this.exact.remove(filter) != null;
+        }
+
+        Node[] path = this.path(filter);
+        if(path == null) {
+            return false;
+        }
+
+        Node node = path[path.length - 1];
+        boolean had = node.subscribers.length > 0;
+        node.subscribers = EMPTY;
+        this.filters.remove(filter);
+        this.prune(filter, path);
+
+        return had;
+    }
+
+    /**
+     * Returns the filters that currently have subscribers.
+     */
+    Set<String> getFilters() {
+        return this.filters;
+    }
+
+    /**
+     * Passes every subscriber whose filter matches the topic to the delivery.  A subscriber registered under several
+     * matching filters receives the message once per filter.
+     *
+     * Returns the number of deliveries.
+     */
+    int dispatch(String topic, byte[] payload, Delivery<T> delivery) {
+        int count = 0;
+
+        Object[] subscribers = this.exact.get(topic);
+        if(subscribers != null) {
+            count += deliver(subscribers, topic, payload, delivery);
+        }
+
+        if(!this.root.children.isEmpty()) {
+            // Per the MQTT spec, wildcards at the first level do not match topics starting with $.
+            count += this.match(this.root, topic, 0, payload, delivery, topic.startsWith("$"));
+        }
+
+        return count;
+    }
+
+    /**
+     * Delivers the message to every subscriber of a wildcard filter that matches the topic, from the given level on.
+     *
+     * Returns the number of deliveries.
+     */
+    private int match(Node node, String topic, int start, byte[] payload, Delivery<T> delivery, boolean noWildcards) {
+        int count = 0;
+
+        Node multi = noWildcards ? null : node.children.get("#");
+        if(multi != null) {
+            // # also matches the parent level, so a/# matches a.
+            count += deliver(multi.subscribers, topic, payload, delivery);
+        }
+
+        if(start > topic.length()) {
+            // All levels of the topic have been matched.
+            return count + deliver(node.subscribers, topic, payload, delivery);
+        }
+
+        int end = topic.indexOf('/', start);
+        if(end < 0) {
+            end = topic.length();
+        }
+
+        Node single = noWildcards ? null : node.children.get("+");
+        if(single != null) {
+            count += this.match(single, topic, end + 1, payload, delivery, false);
+        }
+
+        Node exact = node.children.get(topic.substring(start, end));
+        if(exact != null) {
+            count += this.match(exact, topic, end + 1, payload, delivery, false);
+        }
+
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> int deliver(Object[] subscribers, String topic, byte[] payload, Delivery<T> delivery) {
+        for (Object x : subscribers) {
+            delivery.deliver((T) x, topic, payload);
+        }
+
+        return subscribers.length;
+    }
+
+    private static boolean isWildcard(String filter) {
+        for (String level : filter.split("/", -1)) {
+            if(level.equals("+") || level.equals("#")) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Returns the nodes from the root to the node of the filter, or null if the filter is not in the trie.
+    private Node[] path(String filter) {
+        String[] levels = filter.split("/", -1);
+        Node[] path = new Node[levels.length + 1];
+        path[0] = this.root;
+
+        for (int i = 0; i < levels.length; i++) {
+            path[i + 1] = path[i].children.get(levels[i]);
+            if(path[i + 1] == null) {
+                return null;
+            }
+        }
+
+        return path;
+    }
+
+    // Removes nodes along the path that no longer lead to any subscribers.
+    private void prune(String filter, Node[] path) {
+        String[] levels = filter.split("/", -1);
+
+        for (int i = levels.length; i > 0; i--) {
+            Node node = path[i];
+            if(node.subscribers.length > 0 || !node.children.isEmpty()) {
+                return;
+            }
+            path[i - 1].children.remove(levels[i - 1]);
+        }
+    }
+
+    private static class Node {
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>();
+        volatile Object[] subscribers = EMPTY;
+    }
+}
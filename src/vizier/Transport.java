@@ -0,0 +1,214 @@
+package vizier;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Carries messages between vizier nodes.  Implementations provide publishing of raw payloads, subscription of handlers
+ * to topics (which may contain MQTT wildcards), and their own lifecycle.  The remaining methods are conveniences built on
+ * top of those.
+ *
+ * VizierMqttClient communicates through an MQTT broker.  LoopbackTransport connects nodes within the same JVM.
+ */
+public interface Transport {
+
+    /**
+     * Capacity of the queues returned by subscribe() and subscribeBytes() when none is given.  Once full, delivery
+     * waits for the consumer rather than dropping messages.
+     */
+    int DEFAULT_QUEUE_CAPACITY = 4096;
+
+    /**
+     * Publishes a raw payload.  The payload may be delivered without copying, so it must not be modified after this
+     * call.
+     *
+     * Returns true if the message was accepted for delivery.
+     */
+    boolean publish(String topic, byte[] payload);
+
+    /**
+     * Publishes a raw payload with the given quality of service and retain flag.  The payload may be delivered without
+     * copying, so it must not be modified after this call.  Transports that deliver messages in memory ignore the
+     * options.
+     *
+     * Returns a future that completes once the message is delivered as far as its QoS requires: sent for QoS 0, and
+     * acknowledged by the broker for QoS 1 and 2.  Completes exceptionally if the message was dropped.
+     */
+    default CompletableFuture<Void> publish(String topic, byte[] payload, PublishOptions options) {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        if(this.publish(topic, payload)) {
+            sent.complete(null);
+        } else {
+            sent.completeExceptionally(new IllegalStateException("Dropped message for topic " + topic));
+        }
+
+        return sent;
+    }
+
+    /**
+     * Subscribes a handler to a topic, which may contain MQTT wildcards.  Several handlers may be subscribed to the same
+     * topic.  Each handler receives the messages on a topic in order, and is never run concurrently with itself.
+     */
+    void subscribeWithHandler(String topic, MessageHandler handler);
+
+    /**
+     * Unsubscribes all handlers subscribed to a topic through this transport.
+     */
+    void unsubscribe(String topic);
+
+    /**
+     * Unsubscribes one handler from a topic, leaving any other handlers subscribed to it.
+     */
+    void unsubscribe(String topic, MessageHandler handler);
+
+    /**
+     * Returns the runtime on which handlers run.
+     */
+    VizierRuntime getRuntime();
+
+    /**
+     * Stops all threads and releases all resources held by this transport.
+     */
+    void shutdown();
+
+    /**
+     * Establishes the connection of this transport in the background, if it is not connected yet.  Messages may be
+     * published and topics subscribed while connecting.  Transports that connect when they are created return a
+     * completed future.
+     *
+     * Returns a future that completes when the transport is connected.
+     */
+    default CompletableFuture<Void> connect() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Returns the metrics of the traffic through this transport, which are shared with other users of its runtime.
+     */
+    default VizierMetrics getMetrics() {
+        return this.getRuntime().getMetrics();
+    }
+
+    /**
+     * Publishes a message encoded as UTF-8.
+     *
+     * Returns true if the message was accepted for delivery.
+     */
+    default boolean publish(final String topic, final String message) {
+        return this.publish(topic, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Publishes the remaining bytes of a buffer.  The position of the buffer is not modified.  The backing array is
+     * published directly when the buffer covers all of it; otherwise, the remaining bytes are copied.
+     *
+     * Returns true if the message was accepted for delivery.
+     */
+    default boolean publish(final String topic, final ByteBuffer payload) {
+        if(payload.hasArray() && payload.arrayOffset() == 0 && payload.position() == 0
+                && payload.remaining() == payload.array().length) {
+            return this.publish(topic, payload.array());
+        }
+
+        byte[] copy = new byte[payload.remaining()];
+        payload.duplicate().get(copy);
+        return this.publish(topic, copy);
+    }
+
+    default void subscribeWithCallback(String topic, Consumer<String> callback) {
+        this.subscribeWithHandler(topic, (t, p) -> callback.accept(new String(p, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Subscribes to a topic, passing each payload to the callback without decoding it.  The buffer wraps the received
+     * payload directly and must not be modified.
+     *
+     * @param topic Topic to which to subscribe.
+     * @param callback Called with the payload of each incoming message.
+     */
+    default void subscribeWithByteCallback(String topic, Consumer<ByteBuffer> callback) {
+        this.subscribeWithHandler(topic, (t, p) -> callback.accept(ByteBuffer.wrap(p)));
+    }
+
+    /**
+     * Subscribes to a topic, which may contain MQTT wildcards.  The callback receives both the topic on which each
+     * message arrived and the message itself.
+     *
+     * @param topic Topic or topic filter to which to subscribe.
+     * @param callback Called with (topic, message) for each incoming message.
+     */
+    default void subscribeWithTopicCallback(String topic, BiConsumer<String, String> callback) {
+        this.subscribeWithHandler(topic, (t, p) -> callback.accept(t, new String(p, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Subscribes to a topic, queueing each message in a queue of DEFAULT_QUEUE_CAPACITY.  No message is dropped: once
+     * the queue is full, delivery waits until the consumer takes a message, which also holds up the callbacks that
+     * share a dispatch thread with this subscription.  Use subscribe(topic, capacity, overflowPolicy) to drop messages
+     * instead, and unsubscribe queues that are no longer read.
+     *
+     * @param topic Topic to which to subscribe.
+     */
+    default RingBufferQueue<String> subscribe(String topic) {
+        return this.subscribe(topic, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Subscribes to a topic, queueing each message in a bounded, preallocated queue.  The queue is only
+     * offered to by the subscribed handler, which the transport never runs concurrently with itself, as RingBufferQueue
+     * allows only one producer at a time.  Other threads must not offer to it.
+     *
+     * @param topic Topic to which to subscribe.
+     * @param capacity Maximum number of queued messages.
+     * @param overflowPolicy What to do with a message when the queue is full.
+     */
+    default RingBufferQueue<String> subscribe(String topic, int capacity, OverflowPolicy overflowPolicy) {
+        final RingBufferQueue<String> queue = new RingBufferQueue<>(capacity, overflowPolicy);
+        this.subscribeWithCallback(topic, queue::offer);
+
+        return queue;
+    }
+
+    /**
+     * Subscribes to a topic, queueing the raw payload of each message in a queue of DEFAULT_QUEUE_CAPACITY.  Like
+     * subscribe(topic), no message is dropped, and delivery waits for the consumer once the queue is full.
+     *
+     * @param topic Topic to which to subscribe.
+     */
+    default RingBufferQueue<ByteBuffer> subscribeBytes(String topic) {
+        return this.subscribeBytes(topic, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Subscribes to a topic, queueing the raw payload of each message in a bounded, preallocated queue.  The queue is
+     * only offered to by the subscribed handler, which the transport never runs concurrently with itself, as
+     * RingBufferQueue allows only one producer at a time.  Other threads must not offer to it.
+     *
+     * @param topic Topic to which to subscribe.
+     * @param capacity Maximum number of queued messages.
+     * @param overflowPolicy What to do with a message when the queue is full.
+     */
+    default RingBufferQueue<ByteBuffer> subscribeBytes(String topic, int capacity, OverflowPolicy overflowPolicy) {
+        final RingBufferQueue<ByteBuffer> queue = new RingBufferQueue<>(capacity, overflowPolicy);
+        this.subscribeWithByteCallback(topic, queue::offer);
+
+        return queue;
+    }
+
+    /**
+     * Subscribes to a topic, keeping only the most recent message.
+     *
+     * @param topic Topic to which to subscribe.
+     * Returns a holder that always contains the newest message on the topic.
+     */
+    default LatestValue<String> subscribeLatest(String topic) {
+        final LatestValue<String> latest = new LatestValue<>();
+        this.subscribeWithCallback(topic, latest::set);
+
+        return latest;
+    }
+}
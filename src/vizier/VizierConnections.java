@@ -0,0 +1,102 @@
+package vizier;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Broker connections shared by the nodes of a JVM.  Each node created with VizierNode(host, port, descriptor) gets a
+ * transport from acquire(), and all nodes on the same broker then share one MQTT connection, publishing thread and
+ * runtime, rather than each opening its own.  Connections are reference counted and closed when the last transport
+ * using them is shut down.
+ */
+public final class VizierConnections {
+
+    private static final Map<String, Connection> connections = new HashMap<>();
+
+    private VizierConnections() {}
+
+    /**
+     * Returns a transport over the shared connection to a broker, connecting if no other transport uses it yet.
+     * Subscriptions made through the transport are removed when it is shut down, without affecting other transports
+     * on the same connection.
+     *
+     * @param host IP for the MQTT broker.
+     * @param port Port for the MQTT broker.
+     * Throws IllegalStateException if the connection cannot be established.
+     */
+    public static Transport acquire(String host, int port) {
+        Transport transport = acquire(host, port, false);
+
+        try {
+            transport.connect().join();
+        } catch (CompletionException e) {
+            transport.shutdown();
+            throw e.getCause() instanceof IllegalStateException
+                    ? (IllegalStateException) e.getCause() : new IllegalStateException(e.getCause());
+        }
+
+        return transport;
+    }
+
+    /**
+     * Returns a transport over the shared connection to a broker, optionally without waiting for the connection to be
+     * established.
+     *
+     * @param host IP for the MQTT broker.
+     * @param port Port for the MQTT broker.
+     * @param connect If false, returns immediately.  The connection is established by Transport.connect().
+     */
+    public static Transport acquire(String host, int port, boolean connect) {
+        if(connect) {
+            return acquire(host, port);
+        }
+
+        String key = host + ":" + port;
+
+        synchronized (connections) {
+            final Connection connection = connections.computeIfAbsent(key, (k) -> new Connection(k,
+                    new VizierMqttClient(host, port, VizierMqttClient.DEFAULT_MAX_OUTGOING, OverflowPolicy.BLOCK,
+                            VizierMqttClient.DEFAULT_BLOCK_TIMEOUT, new VizierRuntime(), true, false)));
+
+            connection.references++;
+            return new SharedTransport(connection.client, () -> release(connection));
+        }
+    }
+
+    /**
+     * Returns the number of open shared connections.
+     */
+    public static int getConnectionCount() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    private static void release(Connection connection) {
+        synchronized (connections) {
+            if(--connection.references > 0) {
+                return;
+            }
+
+            connections.remove(connection.key);
+        }
+
+        // Outside the lock, since disconnecting may take a while.
+        connection.client.shutdown();
+    }
+
+    private static class Connection {
+
+        final String key;
+        final VizierMqttClient client;
+
+        // Guarded by connections.
+        int references;
+
+        Connection(String key, VizierMqttClient client) {
+            this.key = key;
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package vizier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters and latency histograms for the traffic of a VizierRuntime and the transports and nodes that use it.
+ * Counters are LongAdders and histograms are lock-free, so recording costs a few uncontended atomic operations and no
+ * allocation, and metrics can be left on in control loops.
+ *
+ * From MATLAB, getSnapshot() returns all values by name, e.g. node.getMetrics().getSnapshot().get('publish.latency.p99_us').
+ */
+public class VizierMetrics implements VizierMetricsMXBean {
+
+    // Maximum number of topics counted individually.  Messages on further topics, such as the response link of every
+    // request, are counted under OTHER_TOPICS so that the map cannot grow without bound.
+    private static final int MAX_TOPICS = 1024;
+    private static final String OTHER_TOPICS = "(other)";
+
+    private final Logger logger = Logger.getGlobal();
+
+    private final LongAdder messagesQueued = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder messagesDropped = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder callbacksRun = new LongAdder();
+    private final LongAdder callbackFailures = new LongAdder();
+    private final LongAdder callbacksDropped = new LongAdder();
+    private final LongAdder requestsSent = new LongAdder();
+    private final LongAdder requestRetries = new LongAdder();
+    private final LongAdder requestTimeouts = new LongAdder();
+    private final LongAdder responsesReceived = new LongAdder();
+    private final LongAdder requestsServed = new LongAdder();
+    private final LongAdder repeatedRequestsServed = new LongAdder();
+
+    // Time from queueing a message to handing it to the broker.
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
+    // Time from the arrival of a message to the start of its callback.
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+    // Time from the first attempt of a request to its response.
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+
+    private final ConcurrentHashMap<String, LongAdder> topicCounts = new ConcurrentHashMap<>();
+    private final List<IntSupplier> queueDepths = new CopyOnWriteArrayList<>();
+
+    private ObjectName objectName;
+
+    /**
+     * Registers these metrics with the platform MBean server as vizier:type=Metrics,name=(name).  Failure to register
+     * is logged but otherwise ignored, since metrics are still available through getSnapshot().
+     */
+    synchronized void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("vizier:type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException | RuntimeException e) {
+            this.logger.log(Level.WARNING, "Could not register metrics MBean " + name, e);
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if they were registered.
+     */
+    synchronized void unregister() {
+        if(this.objectName == null) {
+            return;
+        }
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            this.logger.log(Level.FINE, "Could not unregister metrics MBean " + this.objectName, e);
+        }
+        this.objectName = null;
+    }
+
+    void addQueueDepthGauge(IntSupplier depth) {
+        this.queueDepths.add(depth);
+    }
+
+    void removeQueueDepthGauge(IntSupplier depth) {
+        this.queueDepths.remove(depth);
+    }
+
+    void messageQueued() {
+        this.messagesQueued.increment();
+    }
+
+    void messageDropped() {
+        this.messagesDropped.increment();
+    }
+
+    /**
+     * @param queuedAt Value of System.nanoTime() when the message was queued.
+     */
+    void messageSent(long queuedAt) {
+        this.messagesSent.increment();
+        this.publishLatency.record(System.nanoTime() - queuedAt);
+    }
+
+    void messageReceived(String topic) {
+        this.messagesReceived.increment();
+
+        LongAdder count = this.topicCounts.get(topic);
+        if(count == null) {
+            String key = this.topicCounts.size() < MAX_TOPICS ? topic : OTHER_TOPICS;
+            count = this.topicCounts.computeIfAbsent(key, (k) -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    /**
+     * @param receivedAt Value of System.nanoTime() when the message arrived.
+     */
+    void callbackStarted(long receivedAt) {
+        this.callbacksRun.increment();
+        this.dispatchLatency.record(System.nanoTime() - receivedAt);
+    }
+
+    void callbackFailed() {
+        this.callbackFailures.increment();
+    }
+
+    void callbackDropped() {
+        this.callbacksDropped.increment();
+    }
+
+    void requestSent(boolean retry) {
+        this.requestsSent.increment();
+        if(retry) {
+            this.requestRetries.increment();
+        }
+    }
+
+    void requestTimedOut() {
+        this.requestTimeouts.increment();
+    }
+
+    /**
+     * @param startedAt Value of System.nanoTime() when the request was first sent.
+     */
+    void responseReceived(long startedAt) {
+        this.responsesReceived.increment();
+        this.requestLatency.record(System.nanoTime() - startedAt);
+    }
+
+    void requestServed(boolean repeated) {
+        this.requestsServed.increment();
+        if(repeated) {
+            this.repeatedRequestsServed.increment();
+        }
+    }
+
+    @Override
+    public long getMessagesQueued() {
+        return this.messagesQueued.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return this.messagesSent.sum();
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return this.messagesDropped.sum();
+    }
+
+    @Override
+    public int getOutgoingQueueDepth() {
+        int depth = 0;
+        for (IntSupplier x : this.queueDepths) {
+            depth += x.getAsInt();
+        }
+
+        return depth;
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return this.messagesReceived.sum();
+    }
+
+    @Override
+    public long getCallbacksRun() {
+        return this.callbacksRun.sum();
+    }
+
+    @Override
+    public long getCallbackFailures() {
+        return this.callbackFailures.sum();
+    }
+
+    @Override
+    public long getCallbacksDropped() {
+        return this.callbacksDropped.sum();
+    }
+
+    @Override
+    public long getRequestsSent() {
+        return this.requestsSent.sum();
+    }
+
+    @Override
+    public long getRequestRetries() {
+        return this.requestRetries.sum();
+    }
+
+    @Override
+    public long getRequestTimeouts() {
+        return this.requestTimeouts.sum();
+    }
+
+    @Override
+    public long getResponsesReceived() {
+        return this.responsesReceived.sum();
+    }
+
+    @Override
+    public long getRequestsServed() {
+        return this.requestsServed.sum();
+    }
+
+    @Override
+    public long getRepeatedRequestsServed() {
+        return this.repeatedRequestsServed.sum();
+    }
+
+    /**
+     * Returns the histogram of the time from queueing a message to handing it to the broker.
+     */
+    public LatencyHistogram getPublishLatency() {
+        return this.publishLatency;
+    }
+
+    /**
+     * Returns the histogram of the time from the arrival of a message to the start of its callback.
+     */
+    public LatencyHistogram getDispatchLatency() {
+        return this.dispatchLatency;
+    }
+
+    /**
+     * Returns the histogram of request round-trip times, from the first attempt to the response.
+     */
+    public LatencyHistogram getRequestLatency() {
+        return this.requestLatency;
+    }
+
+    @Override
+    public Map<String, Double> getSnapshot() {
+        Map<String, Double> snapshot = new LinkedHashMap<>();
+
+        snapshot.put("publish.queued", (double) this.getMessagesQueued());
+        snapshot.put("publish.sent", (double) this.getMessagesSent());
+        snapshot.put("publish.dropped", (double) this.getMessagesDropped());
+        snapshot.put("publish.queueDepth", (double) this.getOutgoingQueueDepth());
+        putLatency(snapshot, "publish.latency", this.publishLatency);
+
+        snapshot.put("receive.messages", (double) this.getMessagesReceived());
+        snapshot.put("dispatch.callbacks", (double) this.getCallbacksRun());
+        snapshot.put("dispatch.failures", (double) this.getCallbackFailures());
+        snapshot.put("dispatch.dropped", (double) this.getCallbacksDropped());
+        putLatency(snapshot, "dispatch.latency", this.dispatchLatency);
+
+        snapshot.put("request.sent", (double) this.getRequestsSent());
+        snapshot.put("request.retries", (double) this.getRequestRetries());
+        snapshot.put("request.timeouts", (double) this.getRequestTimeouts());
+        snapshot.put("request.responses", (double) this.getResponsesReceived());
+        putLatency(snapshot, "request.latency", this.requestLatency);
+
+        snapshot.put("serve.requests", (double) this.getRequestsServed());
+        snapshot.put("serve.repeated", (double) this.getRepeatedRequestsServed());
+
+        return snapshot;
+    }
+
+    @Override
+    public Map<String, Long> getTopicMessageCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        this.topicCounts.forEach((topic, count) -> counts.put(topic, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder x : new LongAdder[] { this.messagesQueued, this.messagesSent, this.messagesDropped,
+                this.messagesReceived, this.callbacksRun, this.callbackFailures, this.callbacksDropped, this.requestsSent,
+                this.requestRetries, this.requestTimeouts, this.responsesReceived, this.requestsServed,
+                this.repeatedRequestsServed }) {
+            x.reset();
+        }
+
+        this.publishLatency.reset();
+        this.dispatchLatency.reset();
+        this.requestLatency.reset();
+        this.topicCounts.clear();
+    }
+
+    @Override
+    public String toString() {
+        return this.getSnapshot().toString();
+    }
+
+    private static void putLatency(Map<String, Double> snapshot, String name, LatencyHistogram histogram) {
+        snapshot.put(name + ".count", (double) histogram.getCount());
+        snapshot.put(name + ".mean_us", histogram.getMean() / 1000.0);
+        snapshot.put(name + ".p50_us", histogram.getPercentile(50) / 1000.0);
+        snapshot.put(name + ".p99_us", histogram.getPercentile(99) / 1000.0);
+        snapshot.put(name + ".p999_us", histogram.getPercentile(99.9) / 1000.0);
+        snapshot.put(name + ".max_us", histogram.getMax() / 1000.0);
+    }
+}
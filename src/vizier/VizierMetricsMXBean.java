@@ -0,0 +1,53 @@
+package vizier;
+
+import java.util.Map;
+
+/**
+ * Management interface of VizierMetrics, registered with the platform MBean server as vizier:type=Metrics,name=... so
+ * that the client can be watched from JConsole or VisualVM while it runs.
+ */
+public interface VizierMetricsMXBean {
+
+    long getMessagesQueued();
+
+    long getMessagesSent();
+
+    long getMessagesDropped();
+
+    int getOutgoingQueueDepth();
+
+    long getMessagesReceived();
+
+    long getCallbacksRun();
+
+    long getCallbackFailures();
+
+    long getCallbacksDropped();
+
+    long getRequestsSent();
+
+    long getRequestRetries();
+
+    long getRequestTimeouts();
+
+    long getResponsesReceived();
+
+    long getRequestsServed();
+
+    long getRepeatedRequestsServed();
+
+    /**
+     * Returns every counter, gauge and latency percentile by name.  Latencies are in microseconds.
+     */
+    Map<String, Double> getSnapshot();
+
+    /**
+     * Returns the number of messages received on each topic.
+     */
+    Map<String, Long> getTopicMessageCounts();
+
+    /**
+     * Clears all counters and histograms.
+     */
+    void reset();
+}
@@ -1,70 +1,169 @@
 package vizier;
 
 import org.eclipse.paho.client.mqttv3.*;
+import utils.Utils;
 
+import java.util.*;
 import java.util.concurrent.*;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.IntSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class VizierMqttClient implements MqttCallback {
+public class VizierMqttClient implements Transport, MqttCallback {
 
-    private static final int MAX_OUTGOING = 100;
-    private MqttClient client;
+    public static final int DEFAULT_MAX_OUTGOING = 1024;
+    public static final long DEFAULT_BLOCK_TIMEOUT = 1000;
+    public static final int DEFAULT_MAX_INFLIGHT = 128;
+
+    // Topics are subscribed at the highest QoS, so that each message is delivered with the QoS it was published with.
+    private static final int SUBSCRIBE_QOS = 2;
+
+    // Maximum number of control messages published in a row while stream messages are waiting.  Bounds how long a
+    // steady stream of requests and responses can hold back stream messages.
+    private static final int MAX_CONTROL_STREAK = 16;
+
+    // Delays between reconnection attempts, in milliseconds.  The delay doubles after each failed attempt.
+    private static final long MIN_RECONNECT_DELAY = 50;
+    private static final long MAX_RECONNECT_DELAY = 5000;
+
+    private MqttAsyncClient client;
     private final String host;
     private final int port;
-    private final String id = "java_mqtt_" +  System.currentTimeMillis();
+    // Random, so that clients created in the same millisecond, or in different processes, do not take over each other's
+    // session on the broker.  Kept to 23 characters, the longest client ID that MQTT 3.1 brokers must accept.
+    private final String id = "java_mqtt_" + Utils.createMessageId().substring(0, 13);
     private final Logger logger = Logger.getGlobal();
 
     private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
 
-    // Set up publishing thread
-    private final LinkedBlockingQueue<MessagePair> toPublish = new LinkedBlockingQueue<>();
-    Runnable r = () -> {
-        while(true) {
-            MessagePair msg = null;
+    // Outgoing messages, in two lanes.  Control messages (requests, responses and invalidations) are published ahead
+    // of stream messages, so that a response does not wait behind a backlog of stream data and time out.  Both lanes
+    // are bounded so that a producer that outruns the broker cannot exhaust the heap.  The overflow policy applies to
+    // the stream lane.  Control messages are never dropped to make space, and wait up to blockTimeout for it.
+    private final ArrayBlockingQueue<MessagePair> controlLane;
+    private final ArrayBlockingQueue<MessagePair> streamLane;
+    // Released once for each queued message, so that the publishing thread can wait on both lanes at once.  Messages
+    // dropped to make space leave their permits behind, so a permit does not guarantee a message.
+    private final Semaphore queued = new Semaphore(0);
+    // Number of control messages published in a row while stream messages were waiting.  Only used by the publishing
+    // thread.
+    private int controlStreak;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeout;
+    private final AtomicLong droppedMessages = new AtomicLong();
+
+    // Messages handed to the MQTT client whose delivery has not completed yet.  The publishing thread waits for a
+    // permit before each message, so at most maxInflight messages are outstanding.
+    private final Semaphore inflight;
+    private final IMqttActionListener publishListener = new PublishListener();
+
+    private volatile boolean running = true;
+    private final Future<?> taskFuture;
+
+    // Reconnection state.  The publishing thread waits on connectionMonitor until the client is connected and its
+    // topics are subscribed, so outgoing messages are held in the outgoing queue and sent in order once it is.
+    private final MqttConnectOptions options = new MqttConnectOptions();
+    private final Object connectionMonitor = new Object();
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    // True once the client is connected and every topic with a callback is subscribed, so that nothing is published
+    // before the responses to it can be received.  Set by establish(), cleared when the connection is lost.
+    private volatile boolean ready;
+
+    // Completes once the initial connection is established.  Guarded by connectLock, and replaced if the connection
+    // attempt fails so that connect() can be retried.
+    private final Object connectLock = new Object();
+    private CompletableFuture<Void> connected;
+
+    // Contains callbacks by topic filter.  Callbacks receive the topic on which the message arrived and the raw payload.
+    // Any decoding happens in the callback itself.
+    private final TopicTrie<MessageHandler> callbacks = new TopicTrie<>();
+
+    // Envelope topics of coalesced messages (see Coalescer), subscribed on behalf of the topic filters with callbacks,
+    // along with the number of filters that need each.  Guarded by itself.
+    private final Map<String, Integer> envelopeFilters = new HashMap<>();
+    private final BiConsumer<String, byte[]> unpacked = this::dispatch;
+
+    // Runs callbacks off of the MQTT client's callback thread.
+    private final VizierRuntime runtime;
+    private final boolean ownsRuntime;
+
+    private final TopicTrie.Delivery<MessageHandler> delivery = this::deliver;
+
+    private final VizierMetrics metrics;
+    private final IntSupplier queueDepth = this::getOutgoingQueueDepth;
 
-            if(toPublish.size() >= VizierMqttClient.MAX_OUTGOING) {
-                this.logger.log(Level.SEVERE, "Too many message in outgoing queue!");
-            }
+    public VizierMqttClient(String host, int port) {
+        this(host, port, DEFAULT_MAX_OUTGOING, OverflowPolicy.BLOCK, DEFAULT_BLOCK_TIMEOUT);
+    }
 
-            try {
-                msg = toPublish.take();
-            } catch (InterruptedException e) {
-                this.logger.log(Level.WARNING, "Publish task interrupted.");
-                e.printStackTrace();
-                // Continue in the loop
-                continue;
-            }
+    /**
+     * @param host IP for the MQTT broker.
+     * @param port Port for the MQTT broker.
+     * @param maxOutgoing Maximum number of messages waiting to be published.
+     * @param overflowPolicy What to do with a published message when the outgoing queue is full.
+     * @param blockTimeout For the BLOCK policy, how long to wait for space in the outgoing queue, in milliseconds.
+     */
+    public VizierMqttClient(String host, int port, int maxOutgoing, OverflowPolicy overflowPolicy, long blockTimeout) {
+        this(host, port, maxOutgoing, overflowPolicy, blockTimeout, new VizierRuntime(), true, true);
+    }
 
-            if (msg == null) {
-                this.logger.log(Level.INFO, "Got null message. Terminating publish task");
-                return;
-            }
+    /**
+     * @param host IP for the MQTT broker.
+     * @param port Port for the MQTT broker.
+     * @param maxOutgoing Maximum number of messages waiting to be published.
+     * @param overflowPolicy What to do with a published message when the outgoing queue is full.
+     * @param blockTimeout For the BLOCK policy, how long to wait for space in the outgoing queue, in milliseconds.
+     * @param runtime Runtime on which to run callbacks.  Not shut down with this client.
+     */
+    public VizierMqttClient(String host, int port, int maxOutgoing, OverflowPolicy overflowPolicy, long blockTimeout,
+                            VizierRuntime runtime) {
+        this(host, port, maxOutgoing, overflowPolicy, blockTimeout, runtime, false, true);
+    }
 
-            // Else, if we have a good message
-            try {
-                this.client.publish(msg.topic, msg.message.getBytes(), 0, false);
-            } catch (MqttException e) {
-                this.logger.log(Level.WARNING, "Could not publish MQTT message.");
-                e.printStackTrace();
-            }
-        }
-    };
-    private final Future<?>  taskFuture = executor.submit(r);
+    /**
+     * @param host IP for the MQTT broker.
+     * @param port Port for the MQTT broker.
+     * @param maxOutgoing Maximum number of messages waiting to be published.
+     * @param overflowPolicy What to do with a published message when the outgoing queue is full.
+     * @param blockTimeout For the BLOCK policy, how long to wait for space in the outgoing queue, in milliseconds.
+     * @param maxInflight Maximum number of messages handed to the broker connection whose delivery has not completed.
+     * @param runtime Runtime on which to run callbacks.  Not shut down with this client.
+     */
+    public VizierMqttClient(String host, int port, int maxOutgoing, OverflowPolicy overflowPolicy, long blockTimeout,
+                            int maxInflight, VizierRuntime runtime) {
+        this(host, port, maxOutgoing, overflowPolicy, blockTimeout, maxInflight, runtime, false, true);
+    }
 
-    // Contains callbacks for particular topics.
-    private final ConcurrentHashMap<String, Consumer<String>> callbacks = new ConcurrentHashMap<>();
+    /**
+     * Creates a client that optionally never connects to the broker.  An unconnected client still dispatches messages
+     * passed to messageArrived and queues published messages, which lets the benchmarks run without a broker.
+     */
+    VizierMqttClient(String host, int port, int maxOutgoing, OverflowPolicy overflowPolicy, long blockTimeout,
+                     VizierRuntime runtime, boolean ownsRuntime, boolean connect) {
+        this(host, port, maxOutgoing, overflowPolicy, blockTimeout, DEFAULT_MAX_INFLIGHT, runtime, ownsRuntime, connect);
+    }
 
-    public VizierMqttClient(String host, int port) {
+    VizierMqttClient(String host, int port, int maxOutgoing, OverflowPolicy overflowPolicy, long blockTimeout,
+                     int maxInflight, VizierRuntime runtime, boolean ownsRuntime, boolean connect) {
 
+        this.runtime = runtime;
+        this.ownsRuntime = ownsRuntime;
+        this.metrics = runtime.getMetrics();
         this.host = host;
         this.port = port;
+        this.controlLane = new ArrayBlockingQueue<>(maxOutgoing);
+        this.streamLane = new ArrayBlockingQueue<>(maxOutgoing);
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeout = blockTimeout;
+        this.inflight = new Semaphore(maxInflight);
 
         String uri = "tcp://" + this.host + ":" + this.port;
 
         try {
-            this.client = new MqttClient(uri, id, null);
+            this.client = new MqttAsyncClient(uri, id, null);
         } catch (MqttException e) {
             String msg = String.format("Could not instantiate MQTT client to host (%s) at port (%d)", host, port);
             this.logger.log(Level.SEVERE, msg, e);
@@ -74,19 +173,274 @@ public class VizierMqttClient implements MqttCallback {
 
         this.client.setCallback(this);
 
-        MqttConnectOptions options = new MqttConnectOptions();
-        options.setCleanSession(false);
+        this.options.setCleanSession(false);
+        this.options.setMaxInflight(maxInflight);
 
-        if(client != null) {
+        if(client != null && connect) {
             try {
-                this.client.connect(options);
-            } catch (MqttException e) {
+                this.establish().get();
+            } catch (InterruptedException | ExecutionException e) {
                 String msg = String.format("Could not connect to broker on host (%s) port (%d)", this.host, this.port);
                 this.logger.log(Level.SEVERE, msg);
                 e.printStackTrace();
                 throw new IllegalStateException();
             }
+            this.connected = CompletableFuture.completedFuture(null);
+        }
+
+        this.metrics.addQueueDepthGauge(this.queueDepth);
+
+        // Set up publishing thread
+        this.taskFuture = this.executor.submit(this::publishLoop);
+    }
+
+    /**
+     * Publishes messages from the outgoing lanes, control messages first.  Each wakeup publishes every message queued so
+     * far without waiting on the semaphore again, so that a burst of messages does not cost a handoff per message.
+     * Messages are handed to the MQTT client without waiting for their delivery, which completes on the client's
+     * callback thread, as long as fewer than maxInflight messages are outstanding.
+     */
+    private void publishLoop() {
+        while(this.running) {
+            try {
+                this.queued.acquire();
+            } catch (InterruptedException e) {
+                // Interrupted on shutdown.  Check whether we are still running.
+                continue;
+            }
+
+            int count = 1 + this.queued.drainPermits();
+
+            for (int i = 0; i < count && this.running; i++) {
+                MessagePair msg = this.next();
+                if(msg == null) {
+                    // The remaining permits belong to dropped messages.
+                    break;
+                }
+
+                if(!this.send(msg)) {
+                    msg.failed(new IllegalStateException("Client is shut down"));
+                }
+            }
         }
+
+        // Messages not handed to the client when shutting down are not sent.
+        List<MessagePair> unsent = new ArrayList<>();
+        this.controlLane.drainTo(unsent);
+        this.streamLane.drainTo(unsent);
+        for (MessagePair msg : unsent) {
+            msg.failed(new IllegalStateException("Client is shut down"));
+        }
+
+        this.logger.log(Level.INFO, "Terminating publish task");
+    }
+
+    /**
+     * Returns the next message to publish, or null if both lanes are empty.  Control messages go first, except that a
+     * stream message goes after MAX_CONTROL_STREAK control messages in a row, so that stream data keeps flowing.
+     */
+    private MessagePair next() {
+        MessagePair msg;
+
+        if(this.controlStreak < MAX_CONTROL_STREAK && (msg = this.controlLane.poll()) != null) {
+            if(!this.streamLane.isEmpty()) {
+                this.controlStreak++;
+            }
+            return msg;
+        }
+
+        this.controlStreak = 0;
+        msg = this.streamLane.poll();
+
+        return msg != null ? msg : this.controlLane.poll();
+    }
+
+    /**
+     * Hands a message to the MQTT client, waiting for space in the in-flight window and, if the connection is lost,
+     * for the connection to be restored.
+     *
+     * Returns false if the client was shut down first.
+     */
+    private boolean send(MessagePair msg) {
+        while (this.running) {
+            if(!this.ready) {
+                this.awaitConnection();
+                continue;
+            }
+
+            try {
+                this.inflight.acquire();
+            } catch (InterruptedException e) {
+                // Interrupted on shutdown.
+                return false;
+            }
+
+            try {
+                this.client.publish(msg.topic, msg.payload, msg.options.getQos(), msg.options.isRetained(), msg,
+                        this.publishListener);
+                return true;
+            } catch (MqttException e) {
+                this.inflight.release();
+
+                if(!this.client.isConnected()) {
+                    // Lost the connection.  Retry this message once it is restored.
+                    this.awaitConnection();
+                    continue;
+                }
+
+                this.logger.log(Level.WARNING, "Could not publish MQTT message.", e);
+                msg.failed(e);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Blocks until the client is connected with its topics subscribed, or shut down.
+     */
+    private void awaitConnection() {
+        synchronized (this.connectionMonitor) {
+            while (this.running && !(this.ready && this.client.isConnected())) {
+                try {
+                    // Timed, in case the connection state changes without a notification.
+                    this.connectionMonitor.wait(100);
+                } catch (InterruptedException e) {
+                    // Interrupted on shutdown.  The loop checks whether we are still running.
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects to the broker in the background, if this client was created without connecting.  Topics subscribed
+     * before the connection is established are subscribed in one SUBSCRIBE once it is, and queued messages are
+     * published after that, so a caller can subscribe and publish while connecting.  Returns without waiting for the
+     * broker, or for any shared thread, so that clients connecting at the same time, such as nodes brought up together
+     * by VizierNode.start(), do so concurrently.
+     *
+     * Returns a future that completes when the client is connected, or exceptionally with an IllegalStateException
+     * if the connection could not be established.  Calling connect() again after a failure makes a new attempt.
+     */
+    @Override
+    public CompletableFuture<Void> connect() {
+        synchronized (this.connectLock) {
+            if(this.connected == null || this.connected.isCompletedExceptionally()) {
+                CompletableFuture<Void> attempt = new CompletableFuture<>();
+                this.connected = attempt;
+
+                if(this.running) {
+                    // Started here rather than from the scheduler, so that it does not wait behind timed tasks.
+                    this.connect(attempt);
+                } else {
+                    attempt.completeExceptionally(new IllegalStateException("Client is shut down"));
+                }
+            }
+
+            return this.connected;
+        }
+    }
+
+    private void connect(CompletableFuture<Void> attempt) {
+        this.establish().whenComplete((x, e) -> {
+            if(e == null) {
+                attempt.complete(null);
+                return;
+            }
+
+            String msg = String.format("Could not connect to broker on host (%s) port (%d)", this.host, this.port);
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            this.logger.log(Level.SEVERE, msg, cause);
+            attempt.completeExceptionally(new IllegalStateException(msg, cause));
+        });
+    }
+
+    /**
+     * Connects to the broker, unless a previous attempt already did, then subscribes to every topic with a callback,
+     * and wakes the publishing thread.  An attempt whose SUBSCRIBE failed leaves the client connected, and Paho rejects
+     * connecting a connected client, so the next attempt only subscribes.
+     *
+     * Each step continues from the MQTT client's callback for the previous one rather than waiting for it, so that no
+     * shared thread, such as the runtime's scheduler, is held up for the duration of the handshake.
+     *
+     * Returns a future that completes once the topics are subscribed, or exceptionally with the MqttException of the
+     * step that failed.
+     */
+    private CompletableFuture<Void> establish() {
+        CompletableFuture<Void> established = new CompletableFuture<>();
+
+        if(this.client.isConnected()) {
+            this.subscribeAll(established);
+        } else {
+            try {
+                this.client.connect(this.options, null, new Step(established, () -> this.subscribeAll(established)));
+            } catch (MqttException e) {
+                established.completeExceptionally(e);
+            }
+        }
+
+        return established.thenRun(() -> {
+            this.ready = true;
+            synchronized (this.connectionMonitor) {
+                this.connectionMonitor.notifyAll();
+            }
+        });
+    }
+
+    /**
+     * Subscribes to every topic with a callback, and the envelope topics they need, in one SUBSCRIBE.  Completes the
+     * future once the broker acknowledges it.
+     */
+    private void subscribeAll(CompletableFuture<Void> subscribed) {
+        Set<String> filters = new HashSet<>(this.callbacks.getFilters());
+        synchronized (this.envelopeFilters) {
+            filters.addAll(this.envelopeFilters.keySet());
+        }
+
+        String[] topics = filters.toArray(new String[0]);
+        if(topics.length == 0) {
+            subscribed.complete(null);
+            return;
+        }
+
+        int[] qos = new int[topics.length];
+        Arrays.fill(qos, SUBSCRIBE_QOS);
+
+        try {
+            this.client.subscribe(topics, qos, null, new Step(subscribed, () -> subscribed.complete(null)));
+        } catch (MqttException e) {
+            subscribed.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Attempts to reconnect to the broker.  On success, resubscribes to every topic with a callback in one SUBSCRIBE
+     * and wakes the publishing thread.  Otherwise, including when only the SUBSCRIBE failed, schedules another attempt
+     * after the given delay, doubled.
+     */
+    private void reconnect(long delay) {
+        if(!this.running) {
+            return;
+        }
+
+        this.establish().whenComplete((x, e) -> {
+            if(e == null) {
+                this.reconnecting.set(false);
+                this.logger.log(Level.INFO, String.format("Reconnected to broker on host (%s) port (%d)", this.host,
+                        this.port));
+                return;
+            }
+
+            long next = Math.min(2 * delay, MAX_RECONNECT_DELAY);
+            this.logger.log(Level.FINE, "Could not reconnect.  Retrying in " + next + " ms", e);
+
+            try {
+                this.runtime.getScheduler().schedule(() -> this.reconnect(next), next, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException r) {
+                // Shutting down.
+            }
+        });
     }
 
     /**
@@ -94,14 +448,20 @@ public class VizierMqttClient implements MqttCallback {
      *
      * Disconnects the MQTT client, shutdown the executor, and stops the publishing thread.
      */
+    @Override
     public void shutdown() {
-        boolean failed = true;
+        // Stop any reconnection attempts
+        this.running = false;
+
+        boolean failed = false;
         try {
-            this.client.disconnect(1000);
+            if(this.client.isConnected()) {
+                this.client.disconnect(1000).waitForCompletion();
+            }
         } catch (MqttException e) {
             e.printStackTrace();
             this.logger.log(Level.WARNING, "Could not disconnect MQTT client.");
-            failed = false;
+            failed = true;
         }
 
         if(failed) {
@@ -114,95 +474,375 @@ public class VizierMqttClient implements MqttCallback {
             }
         }
 
-        // Putting null in this queue should cause the task to cease
-        try {
-            this.toPublish.put(null);
-        } catch (InterruptedException e) {
-            this.logger.log(Level.SEVERE, "Interrupted while cancelling publish task");
-            e.printStackTrace();
-        }
-        // Cancel the future that we're running
+        // Stop the publish task, interrupting it if it is waiting for messages
         this.taskFuture.cancel(true);
         // Finally, shutdown the executor
         this.executor.shutdown();
+
+        this.metrics.removeQueueDepthGauge(this.queueDepth);
+
+        if(this.ownsRuntime) {
+            this.runtime.shutdown();
+        }
+    }
+
+    @Override
+    public VizierRuntime getRuntime() {
+        return this.runtime;
     }
 
-    public void publish(final String topic, final String message) {
+    /**
+     * Queues a raw payload for publishing.  The payload is sent as-is, without copying, so it must not be modified
+     * after this call.
+     *
+     * Returns true if the message was queued.
+     */
+    @Override
+    public boolean publish(final String topic, final byte[] payload) {
+        return this.queue(new MessagePair(topic, payload, PublishOptions.DEFAULT, null));
+    }
+
+    /**
+     * Queues a raw payload for publishing with the given quality of service and retain flag.  Control messages are
+     * queued in the control lane, which is published ahead of stream messages.  The payload is sent as-is, without
+     * copying, so it must not be modified after this call.
+     *
+     * Returns a future that completes once the message is sent for QoS 0, or acknowledged by the broker for QoS 1 and
+     * 2.  Completes exceptionally if the message was dropped from the outgoing queue or could not be published.
+     */
+    @Override
+    public CompletableFuture<Void> publish(String topic, byte[] payload, PublishOptions options) {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        MessagePair msg = new MessagePair(topic, payload, options, sent);
+
+        if(!this.queue(msg)) {
+            msg.failed(new IllegalStateException("Outgoing queue full.  Dropped message for topic " + topic));
+        }
+
+        return sent;
+    }
+
+    private boolean queue(MessagePair msg) {
+        if(msg.options.isControl() ? this.queueControl(msg) : this.queueStream(msg)) {
+            this.metrics.messageQueued();
+            this.queued.release();
+            return true;
+        }
+
+        this.droppedMessages.incrementAndGet();
+        this.metrics.messageDropped();
+        this.logger.log(Level.FINE, "Outgoing queue full.  Dropping message for topic " + msg.topic);
+        return false;
+    }
+
+    private boolean queueControl(MessagePair msg) {
         try {
-            this.toPublish.put(new MessagePair(topic, message));
+            return this.controlLane.offer(msg, this.blockTimeout, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             this.logger.log(Level.WARNING, "Interrupted");
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean queueStream(MessagePair msg) {
+        switch (this.overflowPolicy) {
+            case BLOCK:
+                try {
+                    return this.streamLane.offer(msg, this.blockTimeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    this.logger.log(Level.WARNING, "Interrupted");
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            case DROP_OLDEST:
+                while(!this.streamLane.offer(msg)) {
+                    MessagePair dropped = this.streamLane.poll();
+                    if(dropped != null) {
+                        this.droppedMessages.incrementAndGet();
+                        this.metrics.messageDropped();
+                        dropped.failed(new IllegalStateException("Outgoing queue full.  Dropped message for topic "
+                                + dropped.topic));
+                    }
+                }
+                return true;
+            default:
+                return this.streamLane.offer(msg);
         }
     }
 
-    public void subscribeWithCallback(String topic, Consumer<String> callback) {
-        // TODO Make concurrent!!! Add synchronized to callbacks?
+    /**
+     * Returns the number of messages waiting to be published, in both lanes.
+     */
+    public int getOutgoingQueueDepth() {
+        return this.controlLane.size() + this.streamLane.size();
+    }
+
+    /**
+     * Returns the number of control messages waiting to be published.
+     */
+    public int getControlQueueDepth() {
+        return this.controlLane.size();
+    }
+
+    /**
+     * Returns the number of messages handed to the broker connection whose delivery has not completed.
+     */
+    public int getInflightCount() {
+        return this.options.getMaxInflight() - this.inflight.availablePermits();
+    }
+
+    /**
+     * Returns the number of messages that were not published because the outgoing queue was full.
+     */
+    public long getDroppedMessageCount() {
+        return this.droppedMessages.get();
+    }
+
+    @Override
+    public void subscribeWithHandler(String topic, MessageHandler handler) {
+        // Multiple callbacks may be registered on the same topic.  Only the first one subscribes with the broker.
+        if(!this.callbacks.add(topic, handler)) {
+            return;
+        }
+
+        String[] topics = this.withEnvelope(topic, this.retainEnvelope(topic));
+
         try {
-            this.client.subscribe(topic);
-            this.callbacks.put(topic, callback);
+            // Not waited for.  The MQTT client sends the SUBSCRIBE ahead of any message published after this call.
+            int[] qos = new int[topics.length];
+            Arrays.fill(qos, SUBSCRIBE_QOS);
+            this.client.subscribe(topics, qos);
         } catch (MqttException e) {
+            if(this.running && !this.client.isConnected()) {
+                // Keep the callback.  The topic is subscribed when the connection is restored.
+                this.logger.log(Level.INFO, "Disconnected.  Subscribing to " + topic + " on reconnect.");
+                return;
+            }
+
+            if(this.callbacks.remove(topic, handler)) {
+                this.releaseEnvelope(topic);
+            }
             this.logger.log(Level.SEVERE, "Could not subscribe to topic.");
             e.printStackTrace();
         }
     }
 
-    public BlockingQueue<String> subscribe(String topic) {
-        final BlockingQueue<String> queue;
-        queue = new LinkedBlockingQueue<>();
+    /**
+     * Unsubscribes from a topic, removing all callbacks registered on it.
+     */
+    @Override
+    public void unsubscribe(String topic) {
+        if(!this.callbacks.removeAll(topic)) {
+            return;
+        }
 
-        Consumer<String> callback = (b) -> {
-            try {
-                queue.put(b);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        };
-        this.subscribeWithCallback(topic, callback);
+        this.unsubscribeFromBroker(topic);
+    }
 
-        return queue;
+    /**
+     * Removes one callback from a topic.  The topic is unsubscribed from the broker once no callbacks are left on it.
+     */
+    @Override
+    public void unsubscribe(String topic, MessageHandler handler) {
+        if(!this.callbacks.remove(topic, handler)) {
+            return;
+        }
+
+        this.unsubscribeFromBroker(topic);
     }
 
-    public void unsubscribe(String topic) {
-        //TODO Make concurrent!! Add synchronized?
+    /**
+     * Unsubscribes a topic with no callbacks left, and its envelope topic if no other topic needs it.
+     */
+    private void unsubscribeFromBroker(String topic) {
+        String[] topics = this.withEnvelope(topic, this.releaseEnvelope(topic));
+
+        if(!this.client.isConnected()) {
+            // Topics are resubscribed from the callbacks on reconnect, so there is nothing to unsubscribe.
+            return;
+        }
+
         try {
-            this.client.unsubscribe(topic);
-            this.callbacks.remove(topic);
+            this.client.unsubscribe(topics);
         } catch (MqttException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Counts a newly subscribed topic filter against its envelope topic.
+     *
+     * Returns the envelope topic if the filter is the first to need it, or null.
+     */
+    private String retainEnvelope(String filter) {
+        String envelope = Coalescer.envelopeFilter(filter);
+        if(envelope == null) {
+            return null;
+        }
+
+        synchronized (this.envelopeFilters) {
+            return this.envelopeFilters.merge(envelope, 1, Integer::sum) == 1 ? envelope : null;
+        }
+    }
+
+    /**
+     * Releases an unsubscribed topic filter from its envelope topic.
+     *
+     * Returns the envelope topic if no other filter needs it, or null.
+     */
+    private String releaseEnvelope(String filter) {
+        String envelope = Coalescer.envelopeFilter(filter);
+        if(envelope == null) {
+            return null;
+        }
+
+        synchronized (this.envelopeFilters) {
+            Integer count = this.envelopeFilters.get(envelope);
+            if(count == null) {
+                return null;
+            }
+            if(count > 1) {
+                this.envelopeFilters.put(envelope, count - 1);
+                return null;
+            }
+            this.envelopeFilters.remove(envelope);
+            return envelope;
+        }
+    }
+
+    private String[] withEnvelope(String topic, String envelope) {
+        return envelope == null ? new String[] { topic } : new String[] { topic, envelope };
+    }
+
     @Override
     public void connectionLost(Throwable throwable) {
-       //TODO implement.  Resubscribe to everything?
+        if(!this.running) {
+            return;
+        }
+
+        // Holds the publishing thread until the topics are subscribed again.
+        this.ready = false;
+
+        String msg = String.format("Lost connection to broker on host (%s) port (%d).  Reconnecting.", this.host, this.port);
+        this.logger.log(Level.WARNING, msg, throwable);
+
+        // Reconnect from the scheduler rather than the MQTT client's thread, which cannot connect from its callback.
+        if(this.reconnecting.compareAndSet(false, true)) {
+            try {
+                this.runtime.getScheduler().execute(() -> this.reconnect(MIN_RECONNECT_DELAY));
+            } catch (RejectedExecutionException e) {
+                // Shutting down.
+            }
+        }
     }
 
     @Override
     public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
+        if(Coalescer.isEnvelope(s, mqttMessage.getPayload())) {
+            // Each message in the envelope is dispatched as though it had arrived on its own.
+            Coalescer.unpack(s, mqttMessage.getPayload(), this.unpacked);
+            return;
+        }
 
-        // This series of operations should be thread safe, because the callback are contained in a concurrent
-        // structure.  One the callback has been obtained, it doesn't matter if the link is subsequently unsubscribed.
-        Consumer<String> callback = this.callbacks.getOrDefault(s, null);
+        this.dispatch(s, mqttMessage.getPayload());
+    }
 
-        if(callback != null) {
-            callback.accept(new String(mqttMessage.getPayload()));
-        }
+    private void dispatch(String topic, byte[] payload) {
+        this.metrics.messageReceived(topic);
+
+        // This series of operations should be thread safe, because the callbacks are contained in a concurrent
+        // structure.  Once the callbacks have been obtained, it doesn't matter if the link is subsequently
+        // unsubscribed.  Every callback whose filter matches the topic receives the message.
+        this.callbacks.dispatch(topic, payload, this.delivery);
+    }
+
+    /**
+     * Hands an incoming message to the runtime for one callback.
+     */
+    private void deliver(MessageHandler handler, String topic, byte[] payload) {
+        this.runtime.deliver(handler, topic, payload);
     }
 
     @Override
     public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
-        //TODO Not used for now.
+        // Handled by the PublishListener of each message.
+    }
+
+    /**
+     * Completes published messages.  Runs on the MQTT client's callback thread once a message is sent (QoS 0) or
+     * acknowledged (QoS 1 and 2).  Messages with QoS 1 and 2 that are outstanding when the connection is lost are sent
+     * again on reconnect, and only complete then.
+     */
+    private class PublishListener implements IMqttActionListener {
+
+        @Override
+        public void onSuccess(IMqttToken token) {
+            inflight.release();
+
+            MessagePair msg = (MessagePair) token.getUserContext();
+            metrics.messageSent(msg.queuedAt);
+            if(msg.sent != null) {
+                msg.sent.complete(null);
+            }
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable e) {
+            inflight.release();
+
+            MessagePair msg = (MessagePair) token.getUserContext();
+            logger.log(Level.FINE, "Could not publish message for topic " + msg.topic, e);
+            msg.failed(e);
+        }
+    }
+
+    /**
+     * One step of the connection handshake.  Runs the next step on the MQTT client's callback thread once this one
+     * succeeds, or fails the handshake with the error.
+     */
+    private static class Step implements IMqttActionListener {
+
+        private final CompletableFuture<Void> handshake;
+        private final Runnable next;
+
+        Step(CompletableFuture<Void> handshake, Runnable next) {
+            this.handshake = handshake;
+            this.next = next;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken token) {
+            this.next.run();
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable e) {
+            this.handshake.completeExceptionally(e);
+        }
     }
 
     private class MessagePair {
 
         public final String topic;
-        public final String message;
-
-        public MessagePair(String topic, String message) {
+        public final byte[] payload;
+        public final PublishOptions options;
+        // Completed once the message is delivered, or null if nobody waits for it.
+        public final CompletableFuture<Void> sent;
+        // Value of System.nanoTime() when the message was queued.
+        public final long queuedAt = System.nanoTime();
+
+        public MessagePair(String topic, byte[] payload, PublishOptions options, CompletableFuture<Void> sent) {
             this.topic = topic;
-            this.message = message;
+            this.payload = payload;
+            this.options = options;
+            this.sent = sent;
+        }
+
+        void failed(Throwable e) {
+            if(this.sent != null) {
+                this.sent.completeExceptionally(e);
+            }
         }
     }
 }
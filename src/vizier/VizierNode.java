@@ -1,14 +1,16 @@
 package vizier;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import utils.*;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -16,16 +18,67 @@ import java.util.stream.Collectors;
 public class VizierNode {
 
     public enum RequestMethods {
-        GET
+        GET,
+
+        /**
+         * GET of several links of the same node in one request.  The response holds the response for each link.
+         */
+        GET_BATCH
     }
 
-    private VizierMqttClient mqttClient;
-    private final ConcurrentHashMap<String, LinkDescriptor> linkData;
+    private final Transport transport;
+    private final LinkTable links;
+    // State of the node's own links, indexed by link ID.  Null for links requested from other nodes.
+    private final AtomicReferenceArray<LinkState> linkData;
+    // Most recent body received for each requested link, indexed by link ID.  Serves GETs while fresh, and makes
+    // GETs conditional afterwards.
+    private final AtomicReferenceArray<FetchedBody> fetched;
+    // Latest version announced on the invalidation link of the owner of each requested link, indexed by link ID.
+    private final AtomicLongArray announcedVersions;
+    // Remote endpoints whose invalidation link has been subscribed.
+    private final Set<String> invalidationEndpoints = ConcurrentHashMap.newKeySet();
+
+    // How long a fetched body may serve GETs without asking its owner, in nanoseconds.  0 disables the cache.
+    private volatile long cacheTtl;
+    private volatile boolean publishInvalidations;
+    // Packs messages on the links chosen by setCoalescing() into envelopes, or null if no links are coalesced.
+    private volatile Coalescer coalescer;
     private final JsonObject nodeDescriptor;
     private final ArrayList<LinkRequestDescriptor> requests;
     private final String endpoint;
 
-    private final ThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(8);
+    // Number of recently served requests remembered, so that retries of a request can be answered directly.
+    private static final int MAX_SERVED_REQUESTS = 256;
+
+    // Layout used for numeric messages on links that do not declare a schema.
+    private static final LinkSchema DEFAULT_SCHEMA = LinkSchema.parse("float64[N]");
+
+    // Time allowed by start() for retrieving the required links, and the wait after the first attempt of each, in
+    // milliseconds.
+    public static final long DEFAULT_START_TIMEOUT = 2500;
+    private static final int START_RETRY_TIMEOUT = 100;
+
+    // Attempts and timeout of getAll() when none are given.
+    public static final int DEFAULT_GET_ATTEMPTS = 4;
+    public static final int DEFAULT_GET_TIMEOUT = 250;
+
+    // Response for a requested link that this node does not have, within a batch response.
+    private static final byte[] NOT_FOUND_RESPONSE
+            = Utils.createJsonResponse(null, Response.NOT_FOUND, null).getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BATCH_PREFIX = "{\"status\":400,\"responses\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BATCH_SUFFIX = "]}".getBytes(StandardCharsets.UTF_8);
+
+    // Recently served requests, keyed by the raw request message.  An entry is only reused while the links it was
+    // built from are unmodified.
+    private final Map<String, ServedRequest> servedRequests = Collections.synchronizedMap(
+            new LinkedHashMap<String, ServedRequest>(MAX_SERVED_REQUESTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ServedRequest> eldest) {
+                    return this.size() > MAX_SERVED_REQUESTS;
+                }
+            });
+
+    private final RequestEngine requestEngine;
     private final Logger logger = Logger.getGlobal();
 
     private final Set<String> puttableLinks;
@@ -34,50 +87,125 @@ public class VizierNode {
     private final Set<String> subscribableLinks;
 
     /**
-     * Creates a node on a vizier network.
+     * Creates a node on a vizier network.  Nodes created this way on the same broker share one connection, which is
+     * closed when the last of them shuts down.
      *
      * @param host IP for the MQTT broker
      * @param port Port for the MQTT broker.
      * @param nodeDescriptor Node descriptor in the required Vizier format.
      */
     public VizierNode(String host, int port, JsonObject nodeDescriptor) {
+        this(VizierConnections.acquire(host, port), nodeDescriptor);
+    }
+
+    /**
+     * Creates a node that communicates through the given transport.  For example, nodes created with a
+     * LoopbackTransport talk to each other within the JVM, without a broker.
+     *
+     * @param transport Transport over which the node communicates.  Shut down with the node.
+     * @param nodeDescriptor Node descriptor in the required Vizier format.
+     */
+    public VizierNode(Transport transport, JsonObject nodeDescriptor) {
+        this(transport, nodeDescriptor, true);
+    }
+
+    /**
+     * Creates a node on a vizier network without blocking.  The connection to the broker and the retrieval of the
+     * required links proceed concurrently; see start(Transport, JsonObject, long).
+     *
+     * @param host IP for the MQTT broker
+     * @param port Port for the MQTT broker.
+     * @param nodeDescriptor Node descriptor in the required Vizier format.
+     */
+    public static CompletableFuture<VizierNode> start(String host, int port, JsonObject nodeDescriptor) {
+        return start(VizierConnections.acquire(host, port, false), nodeDescriptor, DEFAULT_START_TIMEOUT);
+    }
+
+    /**
+     * Creates a node without blocking.  The node subscribes to its request link and sends GETs for all of its required
+     * links while the transport connects; the transport holds them until the connection is up.  The GETs are retried
+     * with jittered backoff until they succeed or the timeout expires, so bringing up many nodes takes about one round
+     * trip rather than one per link.
+     *
+     * The returned future completes with the node, or exceptionally with an IllegalStateException naming every
+     * required link that could not be retrieved, in which case the node is shut down.
+     *
+     * @param transport Transport over which the node communicates.  Shut down with the node.
+     * @param nodeDescriptor Node descriptor in the required Vizier format.
+     * @param timeout Time allowed for connecting and retrieving all required links, in milliseconds.
+     */
+    public static CompletableFuture<VizierNode> start(Transport transport, JsonObject nodeDescriptor, long timeout) {
+
+        final VizierNode node;
+        try {
+            node = new VizierNode(transport, nodeDescriptor, false);
+        } catch (RuntimeException e) {
+            transport.shutdown();
+            CompletableFuture<VizierNode> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        CompletableFuture<Void> connected = transport.connect();
+        CompletableFuture<Void> verified = node.verifyAsync(timeout);
+
+        CompletableFuture<VizierNode> started = new CompletableFuture<>();
+        CompletableFuture.allOf(connected, verified).whenComplete((x, e) -> {
+            if(e == null) {
+                started.complete(node);
+                return;
+            }
+
+            node.shutdown();
+            // Prefer the connection failure, which explains any missing links.
+            Throwable cause = connected.isCompletedExceptionally() ? causeOf(connected) : causeOf(verified);
+            started.completeExceptionally(cause);
+        });
+
+        return started;
+    }
+
+    private VizierNode(Transport transport, JsonObject nodeDescriptor, boolean verify) {
 
         this.endpoint = nodeDescriptor.get("end_point").getAsString();
         this.nodeDescriptor = nodeDescriptor;
-        this.linkData = new ConcurrentHashMap<>(Utils.parseNodeDescriptor(nodeDescriptor));
-        // Add node descriptor to link data
-        this.linkData.put(this.endpoint+"/node_descriptor", new LinkDescriptor(nodeDescriptor.toString(), "DATA"));
+        String descriptorLink = this.endpoint + "/node_descriptor";
+        HashMap<String, LinkDescriptor> ownLinks = Utils.parseNodeDescriptor(nodeDescriptor);
+        // Add node descriptor to link data.  It has no entry of its own in the descriptor, so a compression given at
+        // the top level applies to it.
+        String compression = nodeDescriptor.has("compression") ? nodeDescriptor.get("compression").getAsString() : null;
+        if(compression != null && !Compression.isSupported(compression)) {
+            throw new IllegalArgumentException("Unknown compression " + compression + " of the node descriptor");
+        }
+        ownLinks.put(descriptorLink, new LinkDescriptor(nodeDescriptor.toString(), "DATA", null, null, null, compression));
         this.requests = Utils.parseNodeDescriptorRequests(nodeDescriptor);
 
-        // Determine the 4 classes of links
-        this.puttableLinks = this.linkData.entrySet().stream()
-                .filter((x) -> x.getValue().getType().equals("DATA"))
-                .map((x) -> x.getKey())
-                .collect(Collectors.toSet());
-
-        this.publishableLinks = this.linkData.entrySet().stream()
-                .filter((x) -> x.getValue().getType().equals("STREAM"))
-                .map((x) -> x.getKey())
-                .collect(Collectors.toSet());
-
-        this.gettableLinks = this.requests.stream()
-                .filter((x) -> x.getType().equals("DATA"))
-                .map((x) -> x.getLink())
-                .collect(Collectors.toSet());
-
         // Add node descriptor to gettable links
-        this.gettableLinks.add(this.endpoint+"/node_descriptor");
+        List<LinkRequestDescriptor> requested = new ArrayList<>(this.requests);
+        requested.add(new LinkRequestDescriptor(descriptorLink, "DATA", false));
 
-        this.subscribableLinks = this.requests.stream()
-                .filter((x) -> x.getType().equals("STREAM"))
-                .map((x) -> x.getLink())
-                .collect(Collectors.toSet());
+        this.links = new LinkTable(ownLinks, requested);
+        this.linkData = new AtomicReferenceArray<>(this.links.size());
+        this.fetched = new AtomicReferenceArray<>(this.links.size());
+        this.announcedVersions = new AtomicLongArray(this.links.size());
+        ownLinks.forEach((link, ld) -> this.linkData.set(this.links.get(link).getId(), new LinkState(ld, nextVersion(0))));
+
+        // Determine the 4 classes of links
+        this.puttableLinks = this.links.linksWhere(LinkHandle::isPuttable);
+        this.publishableLinks = this.links.linksWhere(LinkHandle::isPublishable);
+        this.gettableLinks = this.links.linksWhere(LinkHandle::isGettable);
+        this.subscribableLinks = this.links.linksWhere(LinkHandle::isSubscribable);
 
-        this.mqttClient = new VizierMqttClient(host, port);
+        this.transport = transport;
+        this.requestEngine = new RequestEngine(this.transport, this.transport.getRuntime().getScheduler());
 
         // Set up the local request handler method to receive all requests for the node.
         Consumer<String> requestHandler = (r) -> this.handleRequest(r);
-        this.mqttClient.subscribeWithCallback(Utils.createRequestLink(this.endpoint), requestHandler);
+        this.transport.subscribeWithCallback(Utils.createRequestLink(this.endpoint), requestHandler);
+
+        if(!verify) {
+            return;
+        }
 
         boolean connected = this.verify(10, 250);
 
@@ -87,6 +215,53 @@ public class VizierNode {
         }
     }
 
+    /**
+     * Retrieves all required links concurrently, retrying with jittered backoff until the deadline.
+     *
+     * Returns a future that completes when all required links have been retrieved, or exceptionally with an
+     * IllegalStateException naming every link that could not be.
+     */
+    private CompletableFuture<Void> verifyAsync(long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        List<String> required = this.requests.stream()
+                .filter((x) -> x.isRequired())
+                .map((x) -> x.getLink())
+                .collect(Collectors.toList());
+
+        List<CompletableFuture<Response>> pending = required.stream()
+                .map((x) -> this.requestEngine.requestWithDeadline(x, RequestMethods.GET.name(), null, START_RETRY_TIMEOUT, deadline))
+                .collect(Collectors.toList());
+
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).handle((x, e) -> {
+            List<String> missing = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                if(pending.get(i).isCompletedExceptionally()) {
+                    missing.add(required.get(i));
+                }
+            }
+
+            if(!missing.isEmpty()) {
+                String msg = String.format("Could not retrieve required links %s", missing);
+                this.logger.severe(msg);
+                throw new IllegalStateException(msg);
+            }
+
+            return null;
+        });
+    }
+
+    private static Throwable causeOf(CompletableFuture<?> future) {
+        try {
+            future.join();
+            return null;
+        } catch (CompletionException e) {
+            return e.getCause();
+        } catch (CancellationException e) {
+            return e;
+        }
+    }
+
     /**
      * Verifies that all required links are currently available on the network.  Required links are indicated by the
      * node descriptor.
@@ -104,43 +279,54 @@ public class VizierNode {
                 .map((x) -> x.getLink())
                 .collect(Collectors.toList());
 
-        // Links from the parsed node descriptor that are tagged as required.  Executes requests for required links in
-        // parallel.
-        List<Response> toVerify
+        // Links from the parsed node descriptor that are tagged as required.  All requests are in flight at once, so
+        // verification takes about as long as the slowest link rather than the sum of them.
+        List<CompletableFuture<Response>> pending
                 = requests.stream().filter((r) -> r.isRequired())
-                .parallel()
-                .map((LinkRequestDescriptor x) -> this.makeRequest(x.getLink(), RequestMethods.GET, attempts, timeout))
+                .map((LinkRequestDescriptor x) -> this.makeRequestAsync(x.getLink(), RequestMethods.GET, null, attempts, timeout))
+                .collect(Collectors.toList());
+
+        List<Response> toVerify = pending.stream()
+                .map((x) -> VizierNode.joinOrNull(x))
                 .collect(Collectors.toList());
 
-        // Check that all of the required links are associated with a successful GET request.
+        // Check that all of the required links are associated with a successful GET request, reporting every one that
+        // is not.
+        boolean verified = true;
         for(int i = 0; i < toVerify.size(); i++) {
             if(toVerify.get(i) == null) {
                 // Could not GET a required request.  Report an error
                 System.err.println(String.format("Could not retrieve request for topic (%s)", toVerifyNames.get(i)));
-                //throw new IllegalStateException(String.format();
-                return false;
+                verified = false;
             }
         }
 
-        return true;
+        return verified;
     }
 
     /**
      * Stops all thread-bound tasks associated with this object.
      */
     public void shutdown() {
-        this.mqttClient.shutdown();
+        this.flush();
+        this.requestEngine.shutdown();
+        this.transport.shutdown();
     }
 
     /**
      * Makes a vizier-style GET request on a particular link.  GET requests are a coordinated communication between
      * this node and the requested node.  In particular, a JSON-formatted GET request is sent on the link
-     * requestEndpoint/link/requests.  Responses are sent on the link requestEndpoint/link/messageId.
+     * requestEndpoint/requests.  Responses are sent on the link requestEndpoint/responses/messageId.
      *
+     * The returned future completes with the response, or exceptionally if no response was received after all
+     * attempts.
+     *
+     * @param version For a conditional GET, the version of the link already held, or null.
      * @param attempts
      * @param timeout
      */
-    private Response makeRequest(String link, RequestMethods requestMethod, int attempts, int timeout) {
+    private CompletableFuture<Response> makeRequestAsync(String link, RequestMethods requestMethod, Long version,
+                                                         int attempts, int timeout) {
         //TODO should make this into a general request structure, rather than just for GET requests.
 
         String method = null;
@@ -150,99 +336,710 @@ public class VizierNode {
                 break;
         }
 
-        String messageId = Utils.createMessageId();
-        String request = Utils.createJsonRequest(messageId, link, method);
-
-        String remoteEndpoint = link.split("/")[0];
-        String remoteRequestLink = Utils.createRequestLink(remoteEndpoint);
-        String remoteResponseLink = Utils.createResponseLink(remoteEndpoint, messageId);
-
-        // Start request-response process.  In particular, the node must subscribe to the response channel before
-        // sending the request to ensure that the response is not missed.
-        BlockingQueue<String> incomingMessages = this.mqttClient.subscribe(remoteResponseLink);
-
-        String message = null;
-
-        for (int i = 0; i < attempts; i++){
-            this.mqttClient.publish(remoteRequestLink, request);
-            try {
-                message = incomingMessages.poll(timeout, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                this.logger.log(Level.INFO, "Could not retrieve request for attempted link.  Reattempting...");
-                e.printStackTrace();
-            }
+        return this.requestEngine.request(link, method, version, attempts, timeout);
+    }
 
-            if(message != null) {
-                // We successfully retrieved the request, so we can break out of the loop.
-                break;
-            }
+    private static Response joinOrNull(CompletableFuture<Response> future) {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            return null;
         }
+    }
 
-        this.mqttClient.unsubscribe(remoteResponseLink);
+    /**
+     * Returns the handle of a link of this node, or of a link that it requests.  Calls made through the handle skip the
+     * lookup of the link by name.
+     *
+     * Throws IllegalStateException if the link is not in the node descriptor.
+     */
+    public LinkHandle getHandle(String link) {
+        LinkHandle handle = this.links.get(link);
 
-        if(message == null) {
-            return null;
+        if(handle == null) {
+            String errorMsg = String.format("Link (%s) is not in the node descriptor.", link);
+            this.logger.severe(errorMsg);
+            throw new IllegalStateException(errorMsg);
         }
 
-        // Otherwise, we got the response.  Decode it and return a response.
-        return new Gson().fromJson(message, Response.class);
+        return handle;
+    }
+
+    /**
+     * Returns the table of the links of this node and of the links it requests.
+     */
+    public LinkTable getLinkTable() {
+        return this.links;
     }
 
     public void subscribeWithCallback(String topic, Consumer<String> callback) {
+        this.subscribeWithCallback(this.check(topic, LinkHandle::isSubscribable, "subscribe to", "subscribable"), callback);
+    }
 
-        if(this.subscribableLinks.contains(topic)) {
-            this.mqttClient.subscribeWithCallback(topic, callback);
-        } else {
-            this.logger.log(Level.SEVERE, "Cannot subscribe to link (%s) not in subscribable links", topic);
-            throw new IllegalStateException();
+    public void subscribeWithCallback(LinkHandle link, Consumer<String> callback) {
+        this.check(link, LinkHandle::isSubscribable, "subscribe to", "subscribable");
+        this.transport.subscribeWithCallback(link.getLink(), callback);
+    }
+
+    /**
+     * Subscribes to a link with a callback that receives the raw payload of each message, without decoding it to a
+     * String.
+     *
+     * @param topic The link to which to subscribe.  Must be in the subscribable links.
+     * @param callback Called with the payload of each message.  The buffer must not be modified.
+     */
+    public void subscribeWithByteCallback(String topic, Consumer<ByteBuffer> callback) {
+        this.subscribeWithByteCallback(this.check(topic, LinkHandle::isSubscribable, "subscribe to", "subscribable"), callback);
+    }
+
+    public void subscribeWithByteCallback(LinkHandle link, Consumer<ByteBuffer> callback) {
+        this.check(link, LinkHandle::isSubscribable, "subscribe to", "subscribable");
+        this.transport.subscribeWithByteCallback(link.getLink(), callback);
+    }
+
+    /**
+     * Subscribes to a link, queueing the raw payload of each message without decoding it to a String.  As with
+     * subscribe(topic), no message is dropped.
+     *
+     * @param topic The link to which to subscribe.  Must be in the subscribable links.
+     */
+    public RingBufferQueue<ByteBuffer> subscribeBytes(String topic) {
+        return this.subscribeBytes(this.check(topic, LinkHandle::isSubscribable, "subscribe to", "subscribable"));
+    }
+
+    public RingBufferQueue<ByteBuffer> subscribeBytes(LinkHandle link) {
+        this.check(link, LinkHandle::isSubscribable, "subscribe to", "subscribable");
+        return this.transport.subscribeBytes(link.getLink());
+    }
+
+    /**
+     * Subscribes to a link, queueing the raw payload of each message in a bounded, preallocated queue.
+     *
+     * @param topic The link to which to subscribe.  Must be in the subscribable links.
+     * @param capacity Maximum number of queued messages.
+     * @param overflowPolicy What to do with a message when the queue is full.
+     */
+    public RingBufferQueue<ByteBuffer> subscribeBytes(String topic, int capacity, OverflowPolicy overflowPolicy) {
+        return this.subscribeBytes(this.check(topic, LinkHandle::isSubscribable, "subscribe to", "subscribable"),
+                capacity, overflowPolicy);
+    }
+
+    public RingBufferQueue<ByteBuffer> subscribeBytes(LinkHandle link, int capacity, OverflowPolicy overflowPolicy) {
+        this.check(link, LinkHandle::isSubscribable, "subscribe to", "subscribable");
+        return this.transport.subscribeBytes(link.getLink(), capacity, overflowPolicy);
+    }
+
+    /**
+     * Subscribes to a link that declares a binary schema.  Each message is passed to the callback through the same
+     * reader, which reads values directly from the payload without decoding the whole message.
+     *
+     * @param topic The link to which to subscribe.  Must be in the subscribable links and declare a schema.
+     * @param callback Called with a reader over each message.  The reader is only valid during the call.
+     */
+    public void subscribePacked(String topic, Consumer<PackedReader> callback) {
+        this.subscribePacked(this.check(topic, LinkHandle::isSubscribable, "subscribe to", "subscribable"), callback);
+    }
+
+    public void subscribePacked(LinkHandle link, Consumer<PackedReader> callback) {
+
+        final PackedReader reader = this.requireSchema(link).newReader();
+        this.subscribeWithByteCallback(link, (b) -> callback.accept(reader.wrap(b)));
+    }
+
+    /**
+     * Returns the binary schema of a link, or null if the link does not declare one.
+     */
+    public LinkSchema getLinkSchema(String link) {
+        LinkHandle handle = this.links.get(link);
+        return handle == null ? null : handle.getSchema();
+    }
+
+    /**
+     * Subscribes to a numeric link for bulk reading.  Messages are queued as they arrive and decoded in batches by
+     * NumericSubscription.drain().  Links without a declared schema are read as float64[N].
+     *
+     * @param topic The link to which to subscribe.  Must be in the subscribable links.
+     * @param maxBatch Maximum number of messages returned by one call to drain().
+     */
+    public NumericSubscription subscribeNumeric(String topic, int maxBatch) {
+        return this.subscribeNumeric(this.check(topic, LinkHandle::isSubscribable, "subscribe to", "subscribable"), maxBatch);
+    }
+
+    public NumericSubscription subscribeNumeric(LinkHandle link, int maxBatch) {
+
+        final NumericSubscription subscription = new NumericSubscription(schemaOrDefault(link), maxBatch);
+        this.subscribeWithByteCallback(link, subscription::accept);
+
+        return subscription;
+    }
+
+    private static LinkSchema schemaOrDefault(LinkHandle link) {
+        LinkSchema schema = link.getSchema();
+        return schema == null ? DEFAULT_SCHEMA : schema;
+    }
+
+    private LinkSchema requireSchema(LinkHandle link) {
+        LinkSchema schema = link.getSchema();
+
+        if(schema == null) {
+            String errorMsg = String.format("Link (%s) does not declare a schema.", link);
+            this.logger.severe(errorMsg);
+            throw new IllegalStateException(errorMsg);
         }
+
+        return schema;
     }
 
-    public BlockingQueue<String> subscribe(String topic) {
+    /**
+     * Subscribes to a link, queueing each message in a queue of Transport.DEFAULT_QUEUE_CAPACITY.  No message is
+     * dropped: once the queue is full, delivery waits until it is polled, which also holds up other callbacks on the
+     * same dispatch thread.  Its high-water mark shows how close a consumer has come to that.  To drop messages
+     * instead, pass a capacity and overflow policy.
+     *
+     * @param topic The link to which to subscribe.  Must be in the subscribable links.
+     */
+    public RingBufferQueue<String> subscribe(String topic) {
+        return this.subscribe(this.check(topic, LinkHandle::isSubscribable, "subscribe to", "subscribable"));
+    }
+
+    public RingBufferQueue<String> subscribe(LinkHandle link) {
+        this.check(link, LinkHandle::isSubscribable, "subscribe to", "subscribable");
+        return this.transport.subscribe(link.getLink());
+    }
+
+    /**
+     * Subscribes to a link, queueing each message in a bounded, preallocated queue.  The queue counts the messages
+     * dropped because it was full, and the most messages it has held at once.
+     *
+     * @param topic The link to which to subscribe.  Must be in the subscribable links.
+     * @param capacity Maximum number of queued messages.
+     * @param overflowPolicy What to do with a message when the queue is full.
+     */
+    public RingBufferQueue<String> subscribe(String topic, int capacity, OverflowPolicy overflowPolicy) {
+        return this.subscribe(this.check(topic, LinkHandle::isSubscribable, "subscribe to", "subscribable"),
+                capacity, overflowPolicy);
+    }
+
+    public RingBufferQueue<String> subscribe(LinkHandle link, int capacity, OverflowPolicy overflowPolicy) {
+        this.check(link, LinkHandle::isSubscribable, "subscribe to", "subscribable");
+        return this.transport.subscribe(link.getLink(), capacity, overflowPolicy);
+    }
 
-        if(this.subscribableLinks.contains(topic)) {
-            return this.mqttClient.subscribe(topic);
+    /**
+     * Subscribes to a link, keeping only the most recent message rather than queueing every message.  Reading from a
+     * high-rate link at a lower rate then always yields the current value, with no stale backlog.
+     *
+     * @param topic The link to which to subscribe.  Must be in the subscribable links.
+     */
+    public LatestValue<String> subscribeLatest(String topic) {
+        return this.subscribeLatest(this.check(topic, LinkHandle::isSubscribable, "subscribe to", "subscribable"));
+    }
+
+    public LatestValue<String> subscribeLatest(LinkHandle link) {
+        this.check(link, LinkHandle::isSubscribable, "subscribe to", "subscribable");
+        return this.transport.subscribeLatest(link.getLink());
+    }
+
+    public void publish(String topic, String message) {
+        this.publish(this.check(topic, LinkHandle::isPublishable, "publish to", "publishable"), message);
+    }
+
+    public void publish(LinkHandle link, String message) {
+        this.publish(link, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Publishes a raw payload to a link.  The payload is sent without copying, so it must not be modified after this
+     * call.
+     *
+     * @param topic The link on which to publish.  Must be in the publishable links.
+     * @param payload The payload to publish.
+     */
+    public void publish(String topic, byte[] payload) {
+        this.publish(this.check(topic, LinkHandle::isPublishable, "publish to", "publishable"), payload);
+    }
+
+    public void publish(LinkHandle link, byte[] payload) {
+        this.check(link, LinkHandle::isPublishable, "publish to", "publishable");
+
+        PublishOptions options = link.getPublishOptions();
+        Coalescer coalescer = this.coalescer;
+        if(coalescer != null && coalescer.accepts(link)) {
+            coalescer.add(link, payload, options);
+        } else if(options == PublishOptions.DEFAULT) {
+            this.transport.publish(link.getLink(), payload);
         } else {
-            this.logger.log(Level.SEVERE, "Cannot subscribe to link (%s) not in subscribable links", topic);
-            throw new IllegalStateException();
+            this.transport.publish(link.getLink(), payload, options);
         }
     }
 
-    public void publish(String topic, String message) {
+    /**
+     * Publishes a raw payload to a link with the QoS and retain flag declared for the link in the node descriptor.  The
+     * payload is sent without copying, so it must not be modified after this call.
+     *
+     * @param topic The link on which to publish.  Must be in the publishable links.
+     * @param payload The payload to publish.
+     * Returns a future that completes once the message is sent for QoS 0, or acknowledged by the broker for QoS 1 and
+     * 2.
+     */
+    public CompletableFuture<Void> publishAsync(String topic, byte[] payload) {
+        return this.publishAsync(this.check(topic, LinkHandle::isPublishable, "publish to", "publishable"), payload);
+    }
 
-        if(this.publishableLinks.contains(topic)) {
-            this.mqttClient.publish(topic, message);
+    public CompletableFuture<Void> publishAsync(LinkHandle link, byte[] payload) {
+        this.check(link, LinkHandle::isPublishable, "publish to", "publishable");
+        return this.transport.publish(link.getLink(), payload, link.getPublishOptions());
+    }
+
+    /**
+     * Publishes the remaining bytes of a buffer to a link.  The position of the buffer is not modified.
+     *
+     * @param topic The link on which to publish.  Must be in the publishable links.
+     * @param payload The payload to publish.
+     */
+    public void publish(String topic, ByteBuffer payload) {
+        this.publish(this.check(topic, LinkHandle::isPublishable, "publish to", "publishable"), payload);
+    }
+
+    public void publish(LinkHandle link, ByteBuffer payload) {
+        this.check(link, LinkHandle::isPublishable, "publish to", "publishable");
+        Coalescer coalescer = this.coalescer;
+
+        if(link.getPublishOptions() == PublishOptions.DEFAULT && (coalescer == null || !coalescer.accepts(link))) {
+            this.transport.publish(link.getLink(), payload);
         } else {
-            this.logger.log(Level.SEVERE, "Cannot publish to link (%s) not in publishable links", topic);
-            throw new IllegalStateException();
+            byte[] copy = new byte[payload.remaining()];
+            payload.duplicate().get(copy);
+            this.publish(link, copy);
+        }
+    }
+
+    /**
+     * Coalesces the messages published on some STREAM links of this node.  Rather than one MQTT message each, messages
+     * on these links are packed into one envelope on the link end_point/coalesced, which is published once the window
+     * has passed since its first message, or by flush().  Subscribers receive the messages on their own links as usual,
+     * through either VizierMqttClient or LoopbackTransport.  Cuts the number of messages through the broker when a
+     * control loop publishes on many links every tick.
+     *
+     * Envelopes are published with the highest QoS of their messages and are never retained.  Messages that are not
+     * coalesced may overtake coalesced messages published before them.
+     *
+     * @param links Links to coalesce, replacing any chosen before.  Must be in the publishable links.  If empty,
+     *              coalescing is turned off.
+     * @param window Time after the first message of an envelope at which it is published, in milliseconds.  If 0,
+     *               envelopes are only published by flush().
+     */
+    public void setCoalescing(Collection<String> links, int window) {
+        List<LinkHandle> handles = new ArrayList<>();
+        for (String x : links) {
+            handles.add(this.check(x, LinkHandle::isPublishable, "coalesce", "publishable"));
+        }
+
+        Coalescer previous = this.coalescer;
+        this.coalescer = handles.isEmpty() ? null
+                : new Coalescer(this.transport, this.endpoint, this.links, handles, window);
+
+        if(previous != null) {
+            previous.flush();
+        }
+    }
+
+    /**
+     * Publishes the messages coalesced since the last envelope, for instance at the end of a control loop tick.
+     */
+    public void flush() {
+        Coalescer coalescer = this.coalescer;
+        if(coalescer != null) {
+            coalescer.flush();
+        }
+    }
+
+    /**
+     * Records the messages arriving on some links to a directory, on the thread that receives them, so that they can be
+     * played back later with VizierReplayer.  Recording continues until the returned recorder is closed.
+     *
+     * @param directory Directory in which to write the recording.  Created if it does not exist, and must not contain
+     *                  a recording already.
+     * @param links Links to record.  Must be in the subscribable links.
+     */
+    public VizierRecorder record(String directory, Collection<String> links) {
+        for (String x : links) {
+            this.check(x, LinkHandle::isSubscribable, "record", "subscribable");
+        }
+
+        return new VizierRecorder(this.transport, directory, links);
+    }
+
+    /**
+     * Returns the transport through which this node communicates.
+     */
+    Transport getTransport() {
+        return this.transport;
+    }
+
+    /**
+     * Publishes numeric values to a link in one call.  Values are packed according to the link's schema, or as
+     * float64[N] if it does not declare one.
+     *
+     * @param topic The link on which to publish.  Must be in the publishable links.
+     * @param values Values in row-major order.
+     */
+    public void publish(String topic, double[] values) {
+        this.publish(this.check(topic, LinkHandle::isPublishable, "publish to", "publishable"), values);
+    }
+
+    public void publish(LinkHandle link, double[] values) {
+        this.publish(link, schemaOrDefault(link).encode(values));
+    }
+
+    /**
+     * Publishes numeric values to a link in one call.  Values are packed according to the link's schema, or row by row
+     * as float64[N] if it does not declare one.
+     *
+     * @param topic The link on which to publish.  Must be in the publishable links.
+     * @param values Rows of values.
+     */
+    public void publish(String topic, double[][] values) {
+        this.publish(this.check(topic, LinkHandle::isPublishable, "publish to", "publishable"), values);
+    }
+
+    public void publish(LinkHandle link, double[][] values) {
+        LinkSchema schema = link.getSchema();
+
+        if(schema != null) {
+            this.publish(link, schema.encode(values));
+            return;
+        }
+
+        int count = 0;
+        for (double[] row : values) {
+            count += row.length;
+        }
+
+        double[] flattened = new double[count];
+        int offset = 0;
+        for (double[] row : values) {
+            System.arraycopy(row, 0, flattened, offset, row.length);
+            offset += row.length;
         }
+
+        this.publish(link, DEFAULT_SCHEMA.encode(flattened));
     }
 
     public void put(String topic, String body) {
+        this.put(this.check(topic, LinkHandle::isPuttable, "put to", "puttable"), body);
+    }
 
-        if(this.puttableLinks.contains(topic)) {
+    public void put(LinkHandle link, String body) {
+        this.check(link, LinkHandle::isPuttable, "put to", "puttable");
 
-            LinkDescriptor current = this.linkData.get(topic);
-            LinkDescriptor modified = new LinkDescriptor(body, current.getType());
+        // Retried if another put() replaces the state in between, so that concurrent puts never share a version.
+        LinkState current;
+        LinkState modified;
+        do {
+            current = this.linkData.get(link.getId());
 
-            this.linkData.put(topic, modified);
-        } else {
-            String errorMsg = String.format("Cannot put to link (%s) not in puttable links.", topic);
-            this.logger.severe(errorMsg);
-            throw new IllegalStateException();
+            if(Objects.equals(body, current.descriptor.getBody())) {
+                // Nothing changed, so the cached response is still valid.
+                return;
+            }
+
+            // The cached response belongs to the replaced state, so it is rebuilt from the new data.
+            LinkDescriptor ld = current.descriptor;
+            modified = new LinkState(new LinkDescriptor(body, ld.getType(), ld.getSchema(), ld.getQos(), ld.getRetain(),
+                    ld.getCompression()), nextVersion(current.version));
+        } while (!this.linkData.compareAndSet(link.getId(), current, modified));
+
+        if(this.publishInvalidations) {
+            this.transport.publish(Utils.createInvalidationLink(this.endpoint),
+                    Utils.createJsonInvalidation(link.getLink(), modified.version).getBytes(StandardCharsets.UTF_8),
+                    PublishOptions.CONTROL);
         }
     }
 
+    /**
+     * Sets whether put() announces each modification on the link end_point/invalidations, so that nodes caching this
+     * node's DATA links drop their copies immediately rather than when their TTL expires.  Off by default.
+     */
+    public void setPublishInvalidations(boolean publishInvalidations) {
+        this.publishInvalidations = publishInvalidations;
+    }
+
+    /**
+     * Sets how long a body received by get() is reused for later GETs of the same link without asking its owner.  A
+     * cached body is also dropped as soon as its owner announces a modification, if the owner publishes invalidations.
+     * Once a cached body expires, the next GET is conditional, so an unchanged link is revalidated with a small
+     * NOT_MODIFIED response.
+     *
+     * @param ttl Time to live of cached bodies, in milliseconds.  0, the default, disables the cache.
+     */
+    public void setGetCacheTtl(long ttl) {
+        this.cacheTtl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * Returns the version following the given one.  Versions are at least the current time in microseconds, so that
+     * the versions of a restarted node are not mistaken for those it had before the restart.
+     */
+    private static long nextVersion(long version) {
+        return Math.max(version + 1, System.currentTimeMillis() * 1000);
+    }
+
     public String get(String link, int attempts, int timeout) {
-        if(this.gettableLinks.contains(link)) {
-            // Make the request and return the body.
-            // TODO: Handle error!!!!
-            return this.makeRequest(link, RequestMethods.GET, 4, 250).getBody();
+        return this.get(this.check(link, LinkHandle::isGettable, "get from", "gettable"), attempts, timeout);
+    }
+
+    public String get(LinkHandle link, int attempts, int timeout) {
+        try {
+            return this.getAsync(link, attempts, timeout).join();
+        } catch (CompletionException | CancellationException e) {
+            String errorMsg = String.format("Could not get link (%s).", link);
+            this.logger.log(Level.WARNING, errorMsg, e);
+            throw new IllegalStateException(errorMsg, e);
+        }
+    }
+
+    /**
+     * Asynchronously GETs a link.  Many GETs may be in flight at once without blocking a thread for each of them.
+     *
+     * @param link The link to GET.  Must be in the gettable links.
+     * @param attempts Number of times to attempt the GET request.
+     * @param timeout Timeout for each attempt, in milliseconds.
+     * Returns a future that completes with the body of the link.
+     */
+    public CompletableFuture<String> getAsync(String link, int attempts, int timeout) {
+        return this.getAsync(this.check(link, LinkHandle::isGettable, "get from", "gettable"), attempts, timeout);
+    }
+
+    public CompletableFuture<String> getAsync(LinkHandle link, int attempts, int timeout) {
+        this.check(link, LinkHandle::isGettable, "get from", "gettable");
+
+        FetchedBody known = this.fetched.get(link.getId());
+
+        if(this.isFresh(link, known)) {
+            return CompletableFuture.completedFuture(known.body);
+        }
+
+        // If the link was fetched before, only ask for the body if it has changed since.
+        return this.makeRequestAsync(link.getLink(), RequestMethods.GET, versionOf(known), attempts, timeout)
+                .thenApply((x) -> this.bodyOf(link, known, x));
+    }
+
+    /**
+     * GETs several links, with one request for all the links of each remote node.  The requests to different nodes
+     * are in flight at once.
+     *
+     * @param links The links to GET.  Must be in the gettable links.
+     * Returns the body of each link, by link, in the order given.
+     * Throws IllegalStateException if any of the links could not be retrieved.
+     */
+    public Map<String, String> getAll(Collection<String> links) {
+        return this.getAll(links, DEFAULT_GET_ATTEMPTS, DEFAULT_GET_TIMEOUT);
+    }
+
+    public Map<String, String> getAll(Collection<String> links, int attempts, int timeout) {
+        try {
+            return this.getAllAsync(links, attempts, timeout).join();
+        } catch (CompletionException | CancellationException e) {
+            String errorMsg = String.format("Could not get links %s.", links);
+            this.logger.log(Level.WARNING, errorMsg, e);
+            throw new IllegalStateException(errorMsg, e);
+        }
+    }
+
+    /**
+     * Asynchronously GETs several links, with one GET_BATCH request for all the links of each remote node.  Links with
+     * a fresh cached body are not requested.
+     *
+     * @param links The links to GET.  Must be in the gettable links.
+     * @param attempts Number of times to attempt each request.
+     * @param timeout Timeout for each attempt, in milliseconds.
+     * Returns a future that completes with the body of each link, by link, in the order given, or exceptionally with
+     * an IllegalStateException naming the links that the remote nodes do not have.
+     */
+    public CompletableFuture<Map<String, String>> getAllAsync(Collection<String> links, int attempts, int timeout) {
+
+        List<LinkHandle> handles = new ArrayList<>(links.size());
+        for (String x : links) {
+            handles.add(this.check(x, LinkHandle::isGettable, "get from", "gettable"));
+        }
+
+        String[] bodies = new String[handles.size()];
+        Queue<String> missing = new ConcurrentLinkedQueue<>();
+
+        // Indices of the links to request, by remote endpoint.
+        Map<String, List<Integer>> byEndpoint = new LinkedHashMap<>();
+        for (int i = 0; i < handles.size(); i++) {
+            LinkHandle handle = handles.get(i);
+            FetchedBody known = this.fetched.get(handle.getId());
+
+            if(this.isFresh(handle, known)) {
+                bodies[i] = known.body;
+            } else {
+                byEndpoint.computeIfAbsent(handle.getLink().split("/")[0], (k) -> new ArrayList<>()).add(i);
+            }
+        }
+
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        byEndpoint.forEach((remoteEndpoint, indices) -> {
+            List<String> names = new ArrayList<>(indices.size());
+            List<Long> versions = new ArrayList<>(indices.size());
+            FetchedBody[] known = new FetchedBody[indices.size()];
+
+            for (int j = 0; j < indices.size(); j++) {
+                LinkHandle handle = handles.get(indices.get(j));
+                known[j] = this.fetched.get(handle.getId());
+                names.add(handle.getLink());
+                versions.add(versionOf(known[j]));
+            }
+
+            batches.add(this.requestEngine.request(remoteEndpoint, names, RequestMethods.GET_BATCH.name(), versions,
+                    attempts, timeout).thenAccept((response) -> {
+                List<Response> responses = response.getResponses();
+
+                if(responses == null || responses.size() != names.size()) {
+                    throw new IllegalStateException(String.format("Malformed batch response from (%s)", remoteEndpoint));
+                }
+
+                for (int j = 0; j < responses.size(); j++) {
+                    if(responses.get(j).getStatus() == Response.NOT_FOUND) {
+                        missing.add(names.get(j));
+                    } else {
+                        bodies[indices.get(j)] = this.bodyOf(handles.get(indices.get(j)), known[j], responses.get(j));
+                    }
+                }
+            }));
+        });
+
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).thenApply((x) -> {
+            if(!missing.isEmpty()) {
+                throw new IllegalStateException(String.format("Could not retrieve links %s", missing));
+            }
+
+            Map<String, String> result = new LinkedHashMap<>();
+            for (int i = 0; i < handles.size(); i++) {
+                result.put(handles.get(i).getLink(), bodies[i]);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Returns true if a fetched body may serve a GET without asking its owner.
+     */
+    private boolean isFresh(LinkHandle link, FetchedBody known) {
+        long ttl = this.cacheTtl;
+
+        if(ttl <= 0) {
+            return false;
+        }
+
+        // Must be subscribed to the invalidations before a request is sent, so that none are missed.
+        this.ensureInvalidationsSubscribed(link.getLink());
+
+        return known != null && System.nanoTime() - known.fetchedAt < ttl
+                && (known.version < 0 || known.version >= this.announcedVersions.get(link.getId()));
+    }
+
+    // Version to send in a conditional GET, or null if there is nothing to compare against.
+    private static Long versionOf(FetchedBody known) {
+        return known == null || known.version < 0 ? null : known.version;
+    }
+
+    private void ensureInvalidationsSubscribed(String link) {
+        String remoteEndpoint = link.split("/")[0];
+
+        if(this.invalidationEndpoints.add(remoteEndpoint)) {
+            this.transport.subscribeWithCallback(Utils.createInvalidationLink(remoteEndpoint), this::handleInvalidation);
+        }
+    }
+
+    /**
+     * Handles messages on remoteEndpoint/invalidations, recording the announced version so that older cached bodies
+     * are no longer served.
+     */
+    private void handleInvalidation(String msg) {
+        Invalidation invalidation;
+        try {
+            invalidation = Utils.parseInvalidation(msg);
+        } catch (RuntimeException e) {
+            this.logger.log(Level.WARNING, "Could not decode invalidation " + msg, e);
+            return;
+        }
+
+        LinkHandle handle = invalidation.getLink() == null ? null : this.links.get(invalidation.getLink());
+        if(handle == null) {
+            return;
+        }
+
+        this.announcedVersions.accumulateAndGet(handle.getId(), invalidation.getVersion(), Math::max);
+    }
+
+    /**
+     * Returns the body of a GET response, and remembers it.  A NOT_MODIFIED response yields the body already held.
+     */
+    private String bodyOf(LinkHandle link, FetchedBody known, Response response) {
+
+        String body;
+        long version;
+
+        if(response.getStatus() == Response.NOT_MODIFIED) {
+            if(known == null) {
+                throw new IllegalStateException(String.format("Unexpected NOT_MODIFIED response for link (%s).", link));
+            }
+            body = known.body;
+            version = known.version;
         } else {
-            String errorMsg = String.format("Cannot get from link (%s) not in gettable links.", link);
-            this.logger.severe(errorMsg);
-            throw new IllegalStateException(errorMsg);
+            body = response.getBody();
+            version = response.getVersion() == null ? -1 : response.getVersion();
+        }
+
+        // Keep the newest body.  An equal version refreshes the time at which it was fetched.
+        FetchedBody current = this.fetched.get(link.getId());
+        if(current == null || current.version <= version) {
+            this.fetched.compareAndSet(link.getId(), current, new FetchedBody(version, body, System.nanoTime()));
+        }
+
+        return body;
+    }
+
+    /**
+     * Returns the handle of a link if the node may use it as described by the predicate.
+     *
+     * Throws IllegalStateException otherwise.
+     */
+    private LinkHandle check(String link, Predicate<LinkHandle> allowed, String operation, String linkClass) {
+        LinkHandle handle = this.links.get(link);
+
+        if(handle == null || !allowed.test(handle)) {
+            throw this.notAllowed(link, operation, linkClass);
         }
+
+        return handle;
+    }
+
+    /**
+     * Checks that a handle belongs to this node, and that the node may use it as described by the predicate.  Only
+     * reads fields of the handle.
+     */
+    private void check(LinkHandle handle, Predicate<LinkHandle> allowed, String operation, String linkClass) {
+        if(handle.getTable() != this.links || !allowed.test(handle)) {
+            throw this.notAllowed(handle.getLink(), operation, linkClass);
+        }
+    }
+
+    private IllegalStateException notAllowed(String link, String operation, String linkClass) {
+        String errorMsg = String.format("Cannot %s link (%s) not in %s links.", operation, link, linkClass);
+        this.logger.severe(errorMsg);
+        return new IllegalStateException(errorMsg);
+    }
+
+    /**
+     * Returns the metrics of this node's traffic: publish and request latencies, retries, timeouts, queue depth and
+     * per-topic message counts.  Shared with other users of the node's runtime.
+     */
+    public VizierMetrics getMetrics() {
+        return this.transport.getMetrics();
     }
 
     public Set<String> getPuttableLinks() {
@@ -267,10 +1064,20 @@ public class VizierNode {
      *
      * @param msg The incoming message from the MQTT client
      */
-    private void handleRequest(String msg) {
+    void handleRequest(String msg) {
+
+        // Retries of a request are identical messages, so they can be answered without parsing anything, unless a link
+        // has been modified since.
+        ServedRequest served = this.servedRequests.get(msg);
+
+        if(served != null && served.isCurrent(this.linkData)) {
+            this.transport.publish(served.responseLink, served.response, served.options);
+            this.transport.getMetrics().requestServed(true);
+            return;
+        }
 
         //JsonObject jsonMsg = new JsonParser().parse(msg).getAsJsonObject();
-        Request request = new Gson().fromJson(msg, Request.class);
+        Request request = Utils.parseRequest(msg);
 
         // Verify that message contains required fields
         String id = request.getId();
@@ -287,26 +1094,194 @@ public class VizierNode {
             return;
         }
 
-        if(link == null) {
+        if(link == null && request.getLinks() == null) {
             // TODO Handle error
             return;
         }
 
         // Otherwise, proceed with response
         if(method.equals("GET")) {
-            if (!this.linkData.containsKey(link)) {
+            LinkHandle handle = this.links.get(link);
+            LinkState state = handle == null ? null : this.linkData.get(handle.getId());
+
+            if (state == null) {
                 // Respond with error
                 String errorMsg = String.format("Received GET request for link (%s) not contained here", link);
                 this.logger.warning(errorMsg);
                 return;
             }
 
-            // Else, the key is in the data that we currently have
-            LinkDescriptor ld = this.linkData.get(link);
-            String responseLink = Utils.createResponseLink(this.endpoint, id);
+            // Else, the key is in the data that we currently have.  The serialized response only depends on the link,
+            // so it is reused until the link is modified.
+            this.respond(msg, id, state.getResponse(request.getVersion()), handle.getPublishOptions(),
+                    new int[] { handle.getId() }, new LinkState[] { state });
+        } else if(method.equals("GET_BATCH") && request.getLinks() != null) {
+            List<String> requested = request.getLinks();
+            List<Long> versions = request.getVersions();
+            byte[][] responses = new byte[requested.size()][];
+            int[] ids = new int[responses.length];
+            LinkState[] states = new LinkState[responses.length];
+            // The batch is published with the highest QoS of its links.
+            int qos = 0;
+
+            for (int i = 0; i < responses.length; i++) {
+                LinkHandle handle = requested.get(i) == null ? null : this.links.get(requested.get(i));
+                LinkState state = handle == null ? null : this.linkData.get(handle.getId());
+                Long known = versions == null || i >= versions.size() ? null : versions.get(i);
+
+                responses[i] = state == null ? NOT_FOUND_RESPONSE : state.getResponse(known);
+                ids[i] = state == null ? -1 : handle.getId();
+                states[i] = state;
+                if(state != null) {
+                    qos = Math.max(qos, handle.getPublishOptions().getQos());
+                }
+            }
+
+            this.respond(msg, id, batchResponse(responses), PublishOptions.of(qos, false, true), ids, states);
+        }
+    }
+
+    /**
+     * Publishes a response, and keeps it for retries of the request along with the link states it was built from.
+     *
+     * @param ids IDs of the links in the response, or -1 for links this node does not have.
+     * @param states State of each link from which the response was built.
+     */
+    private void respond(String msg, String id, byte[] response, PublishOptions options, int[] ids,
+                         LinkState[] states) {
+        String responseLink = Utils.createResponseLink(this.endpoint, id);
+
+        this.servedRequests.put(msg, new ServedRequest(responseLink, response, options, ids, states));
+        this.transport.publish(responseLink, response, options);
+        this.transport.getMetrics().requestServed(false);
+    }
+
+    /**
+     * Joins serialized responses for single links into one batch response, without serializing them again.
+     */
+    private static byte[] batchResponse(byte[][] responses) {
+        int size = BATCH_PREFIX.length + BATCH_SUFFIX.length + Math.max(0, responses.length - 1);
+        for (byte[] x : responses) {
+            size += x.length;
+        }
+
+        byte[] batch = new byte[size];
+        System.arraycopy(BATCH_PREFIX, 0, batch, 0, BATCH_PREFIX.length);
+        int offset = BATCH_PREFIX.length;
+
+        for (int i = 0; i < responses.length; i++) {
+            if(i > 0) {
+                batch[offset++] = ',';
+            }
+            System.arraycopy(responses[i], 0, batch, offset, responses[i].length);
+            offset += responses[i].length;
+        }
+
+        System.arraycopy(BATCH_SUFFIX, 0, batch, offset, BATCH_SUFFIX.length);
+        return batch;
+    }
+
+    /**
+     * Current data of one of the node's own links.  Replaced as a whole when the link is modified, so that the cached
+     * response can never outlive the data it was built from.
+     */
+    private static class LinkState {
+
+        final LinkDescriptor descriptor;
+        final long version;
+
+        // Serialized GET responses, built on first use.  Concurrent requests may both build a response, which is
+        // harmless.  Bodies are compressed here, if the link asks for it, so only once per version.
+        private volatile byte[] response;
+        private volatile byte[] notModifiedResponse;
+
+        LinkState(LinkDescriptor descriptor, long version) {
+            this.descriptor = descriptor;
+            this.version = version;
+        }
+
+        byte[] getResponse() {
+            byte[] response = this.response;
+
+            if(response == null) {
+                String body = this.descriptor.getBody();
+                String encoding = this.descriptor.getCompression();
+                String compressed = body == null || encoding == null ? null : Compression.compress(body, encoding);
+
+                response = (compressed == null
+                        ? Utils.createJsonResponse(this.descriptor.getType(), 400, body, this.version)
+                        : Utils.createJsonResponse(this.descriptor.getType(), 400, compressed, this.version, encoding))
+                        .getBytes(StandardCharsets.UTF_8);
+                this.response = response;
+            }
+
+            return response;
+        }
+
+        /**
+         * Returns the response to a GET from a requester that already has the given version, or null.  If that is the
+         * current version, the requester only needs to be told so.
+         */
+        byte[] getResponse(Long known) {
+            return known != null && known == this.version ? this.getNotModifiedResponse() : this.getResponse();
+        }
+
+        byte[] getNotModifiedResponse() {
+            byte[] response = this.notModifiedResponse;
+
+            if(response == null) {
+                response = Utils.createJsonResponse(this.descriptor.getType(), Response.NOT_MODIFIED, null, this.version)
+                        .getBytes(StandardCharsets.UTF_8);
+                this.notModifiedResponse = response;
+            }
+
+            return response;
+        }
+    }
+
+    private static class FetchedBody {
+
+        // -1 if the owner does not version its links.
+        final long version;
+        final String body;
+        // Value of System.nanoTime() when the body was received.
+        final long fetchedAt;
+
+        FetchedBody(long version, String body, long fetchedAt) {
+            this.version = version;
+            this.body = body;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static class ServedRequest {
+
+        final String responseLink;
+        final byte[] response;
+        final PublishOptions options;
+        final int[] ids;
+        final LinkState[] states;
+
+        ServedRequest(String responseLink, byte[] response, PublishOptions options, int[] ids, LinkState[] states) {
+            this.responseLink = responseLink;
+            this.response = response;
+            this.options = options;
+            this.ids = ids;
+            this.states = states;
+        }
+
+        /**
+         * Returns true if none of the links in the response has been modified since it was built.  put() replaces the
+         * state of a link, so comparing references is enough.
+         */
+        boolean isCurrent(AtomicReferenceArray<LinkState> linkData) {
+            for (int i = 0; i < this.ids.length; i++) {
+                if(this.ids[i] >= 0 && linkData.get(this.ids[i]) != this.states[i]) {
+                    return false;
+                }
+            }
 
-            String response = Utils.createJsonResponse(ld.getType(), 400, ld.getBody());
-            this.mqttClient.publish(responseLink, response);
+            return true;
         }
     }
 }
@@ -0,0 +1,326 @@
+package vizier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the messages arriving on a set of topics to a directory, to be played back later by VizierReplayer.  Messages
+ * are appended to memory-mapped segment files as they arrive, on the thread that received them, so recording costs a
+ * copy per message and never holds up dispatch: the next segment is mapped in the background before the current one
+ * fills up, and messages that arrive while it is not ready yet are dropped and counted.
+ *
+ * Segments are named 000000.log, 000001.log, and so on.  Each starts with an 8 byte magic number, followed by one
+ * record per message: the length of the rest of the record (32 bits), the arrival time in nanoseconds since the epoch
+ * (64 bits), the length of the topic (unsigned 16 bits), the topic in UTF-8 and the payload, all big-endian.  A length
+ * of 0 marks the end of the segment.  When a segment is complete, its index is written next to it as 000000.idx: the
+ * time and offset (64 and 32 bits) of its first record and of every INDEX_INTERVAL-th record after it, which lets the
+ * replayer seek to a point in time without reading the whole recording.
+ */
+public class VizierRecorder implements MessageTap, AutoCloseable {
+
+    /**
+     * Size of each segment file when none is given, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // "VIZREC01"
+    static final long MAGIC = 0x56495A5245433031L;
+    static final int HEADER_SIZE = 8;
+    // Time, topic length.
+    static final int RECORD_HEADER_SIZE = 8 + 2;
+    static final int INDEX_INTERVAL = 1024;
+    static final int INDEX_ENTRY_SIZE = 8 + 4;
+
+    // Encoded topics are cached, as there are usually only a few of them.  Cleared once this many are cached.
+    private static final int MAX_CACHED_TOPICS = 1024;
+
+    private final Logger logger = Logger.getGlobal();
+
+    private final Transport transport;
+    private final Path directory;
+    private final List<String> topics;
+    private final int segmentSize;
+
+    // Maps segments and writes indices, so that neither happens on a receiving thread.
+    private final ExecutorService background = Executors.newSingleThreadExecutor((r) -> {
+        Thread t = new Thread(r, "vizier-recorder");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Wall clock time at which recording started, and the matching value of System.nanoTime(), from which arrival
+    // times are derived so that they are both precise and monotonic.
+    private final long startEpochNanos = System.currentTimeMillis() * 1_000_000L;
+    private final long startNanos = System.nanoTime();
+
+    // Guarded by this.
+    private final Map<String, byte[]> encodedTopics = new HashMap<>();
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private int segmentRecords;
+    private long[] indexTimes = new long[64];
+    private int[] indexOffsets = new int[64];
+    private Future<MappedByteBuffer> next;
+    private long recordedCount;
+    private long droppedCount;
+    private boolean closed;
+
+    /**
+     * Starts recording the messages on the given topics with segments of DEFAULT_SEGMENT_SIZE.
+     *
+     * @param transport Transport from which to record.
+     * @param directory Directory in which to write the recording.  Created if it does not exist, and must not contain
+     *                  a recording already.
+     * @param topics Topics or topic filters to record.
+     */
+    public VizierRecorder(Transport transport, String directory, Collection<String> topics) {
+        this(transport, directory, topics, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Starts recording the messages on the given topics.
+     *
+     * @param transport Transport from which to record.
+     * @param directory Directory in which to write the recording.  Created if it does not exist, and must not contain
+     *                  a recording already.
+     * @param topics Topics or topic filters to record.
+     * @param segmentSize Size of each segment file, in bytes.  Messages larger than a segment are dropped.
+     */
+    public VizierRecorder(Transport transport, String directory, Collection<String> topics, int segmentSize) {
+        if(segmentSize < HEADER_SIZE + 4 + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+        }
+
+        this.transport = transport;
+        this.directory = Paths.get(directory);
+        this.topics = new ArrayList<>(topics);
+        this.segmentSize = segmentSize;
+
+        try {
+            Files.createDirectories(this.directory);
+            if(Files.exists(segmentPath(this.directory, 0))) {
+                throw new IllegalArgumentException("Directory " + directory + " already contains a recording");
+            }
+
+            this.segment = this.map(0);
+        } catch (IOException e) {
+            this.background.shutdown();
+            throw new IllegalStateException("Could not start recording in " + directory, e);
+        }
+
+        this.next = this.background.submit(() -> this.map(1));
+
+        for (String x : this.topics) {
+            this.transport.subscribeWithHandler(x, this);
+        }
+    }
+
+    /**
+     * Appends a message to the current segment.  Called on the thread that received it.
+     */
+    @Override
+    public void handle(String topic, byte[] payload) {
+        synchronized (this) {
+            if(this.closed) {
+                return;
+            }
+
+            byte[] encoded = this.encodedTopics.get(topic);
+            if(encoded == null) {
+                if(this.encodedTopics.size() >= MAX_CACHED_TOPICS) {
+                    this.encodedTopics.clear();
+                }
+                encoded = topic.getBytes(StandardCharsets.UTF_8);
+                this.encodedTopics.put(topic, encoded);
+            }
+
+            int length = RECORD_HEADER_SIZE + encoded.length + payload.length;
+            if(this.segment.remaining() < 4 + length && !this.roll(length)) {
+                this.droppedCount++;
+                return;
+            }
+
+            long time = this.startEpochNanos + (System.nanoTime() - this.startNanos);
+            int offset = this.segment.position();
+
+            if(this.segmentRecords % INDEX_INTERVAL == 0) {
+                this.addIndexEntry(time, offset);
+            }
+
+            this.segment.position(offset + 4);
+            this.segment.putLong(time).putShort((short) encoded.length).put(encoded).put(payload);
+            // Written last, so that a record cut short by a crash reads as the end of the segment.
+            this.segment.putInt(offset, length);
+
+            this.segmentRecords++;
+            this.recordedCount++;
+        }
+    }
+
+    /**
+     * Stops recording.  Waits until the current segment and its index are written.
+     */
+    @Override
+    public void close() {
+        for (String x : this.topics) {
+            this.transport.unsubscribe(x, this);
+        }
+
+        synchronized (this) {
+            if(this.closed) {
+                return;
+            }
+            this.closed = true;
+
+            this.segment.force();
+            this.writeIndex(this.segmentNumber, this.indexTimes, this.indexOffsets, this.indexEntries());
+        }
+
+        // The segment mapped in advance is not needed.
+        this.background.execute(() -> {
+            try {
+                this.next.get();
+                Files.deleteIfExists(segmentPath(this.directory, this.segmentNumber + 1));
+            } catch (InterruptedException | ExecutionException | IOException e) {
+                // Nothing was mapped, or it is left empty, which the replayer skips.
+            }
+        });
+        this.background.shutdown();
+
+        try {
+            this.background.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the directory of the recording.
+     */
+    public String getDirectory() {
+        return this.directory.toString();
+    }
+
+    /**
+     * Returns the number of messages recorded.
+     */
+    public synchronized long getRecordedCount() {
+        return this.recordedCount;
+    }
+
+    /**
+     * Returns the number of messages dropped, because they were larger than a segment or the next segment was not
+     * mapped yet.
+     */
+    public synchronized long getDroppedCount() {
+        return this.droppedCount;
+    }
+
+    /**
+     * Moves on to the segment mapped in the background, if it is ready, and starts mapping the one after it.  The index
+     * of the finished segment is written in the background.
+     *
+     * Returns false if a record of the given length cannot be written.
+     */
+    private boolean roll(int length) {
+        if(HEADER_SIZE + 4 + length > this.segmentSize || !this.next.isDone()) {
+            return false;
+        }
+
+        MappedByteBuffer mapped;
+        try {
+            mapped = this.next.get();
+        } catch (InterruptedException | ExecutionException e) {
+            this.logger.log(Level.WARNING, "Could not create segment " + (this.segmentNumber + 1) + " of recording in "
+                    + this.directory, e);
+            final int number = this.segmentNumber + 1;
+            this.next = this.background.submit(() -> this.map(number));
+            return false;
+        }
+
+        final int finished = this.segmentNumber;
+        final long[] times = this.indexTimes;
+        final int[] offsets = this.indexOffsets;
+        final int entries = this.indexEntries();
+        this.background.execute(() -> this.writeIndex(finished, times, offsets, entries));
+
+        this.segment = mapped;
+        this.segmentNumber++;
+        this.segmentRecords = 0;
+        this.indexTimes = new long[64];
+        this.indexOffsets = new int[64];
+
+        final int number = this.segmentNumber + 1;
+        this.next = this.background.submit(() -> this.map(number));
+        return true;
+    }
+
+    private int indexEntries() {
+        return (this.segmentRecords + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+    }
+
+    private void addIndexEntry(long time, int offset) {
+        int entry = this.segmentRecords / INDEX_INTERVAL;
+
+        if(entry == this.indexTimes.length) {
+            this.indexTimes = Arrays.copyOf(this.indexTimes, 2 * entry);
+            this.indexOffsets = Arrays.copyOf(this.indexOffsets, 2 * entry);
+        }
+
+        this.indexTimes[entry] = time;
+        this.indexOffsets[entry] = offset;
+    }
+
+    private MappedByteBuffer map(int number) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(this.directory, number), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Grows the file to its full size.  The mapping stays valid once the channel is closed.
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+            mapped.putLong(MAGIC);
+            return mapped;
+        }
+    }
+
+    private void writeIndex(int number, long[] times, int[] offsets, int entries) {
+        ByteBuffer index = ByteBuffer.allocate(entries * INDEX_ENTRY_SIZE);
+        for (int i = 0; i < entries; i++) {
+            index.putLong(times[i]).putInt(offsets[i]);
+        }
+
+        try {
+            Files.write(indexPath(this.directory, number), index.array());
+        } catch (IOException e) {
+            // The replayer rebuilds missing indices from the segment itself.
+            this.logger.log(Level.WARNING, "Could not write index of segment " + number + " of recording in "
+                    + this.directory, e);
+        }
+    }
+
+    static Path segmentPath(Path directory, int number) {
+        return directory.resolve(String.format("%06d.log", number));
+    }
+
+    static Path indexPath(Path directory, int number) {
+        return directory.resolve(String.format("%06d.idx", number));
+    }
+}
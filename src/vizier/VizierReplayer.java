@@ -0,0 +1,356 @@
+package vizier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back a recording made by VizierRecorder, publishing each message again on its topic.  Messages are published in
+ * the order in which they were recorded, either with their original spacing in time, scaled by a speed factor, or as
+ * fast as possible.  Playback starts at the beginning of the recording, or at the point in time chosen with seek(),
+ * which uses the index of each segment to skip ahead without reading the recording up to that point.
+ *
+ * Times are in milliseconds since the epoch, as elsewhere in the client, but keep the nanosecond precision of the
+ * recording in the spacing of the messages.
+ */
+public class VizierReplayer {
+
+    private final Path directory;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    // Time of the first record of each segment, in nanoseconds since the epoch, or Long.MAX_VALUE if it is empty.
+    private final long[] firstTimes;
+    // Index entries of each segment, loaded when first needed.
+    private final long[][] indexTimes;
+    private final int[][] indexOffsets;
+
+    // Position of the next record to play.  Guarded by this.
+    private int segment;
+    private int offset = VizierRecorder.HEADER_SIZE;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param directory Directory of the recording.
+     */
+    public VizierReplayer(String directory) {
+        this.directory = Paths.get(directory);
+
+        try {
+            for (int i = 0; Files.exists(VizierRecorder.segmentPath(this.directory, i)); i++) {
+                try (FileChannel channel = FileChannel.open(VizierRecorder.segmentPath(this.directory, i),
+                        StandardOpenOption.READ)) {
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+                    if(mapped.limit() < VizierRecorder.HEADER_SIZE || mapped.getLong(0) != VizierRecorder.MAGIC) {
+                        throw new IllegalArgumentException("Segment " + i + " in " + directory
+                                + " is not part of a recording");
+                    }
+
+                    this.segments.add(mapped);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open recording in " + directory, e);
+        }
+
+        if(this.segments.isEmpty()) {
+            throw new IllegalArgumentException("Directory " + directory + " does not contain a recording");
+        }
+
+        this.firstTimes = new long[this.segments.size()];
+        this.indexTimes = new long[this.segments.size()][];
+        this.indexOffsets = new int[this.segments.size()][];
+
+        for (int i = 0; i < this.firstTimes.length; i++) {
+            ByteBuffer x = this.segments.get(i);
+            this.firstTimes[i] = recordLength(x, VizierRecorder.HEADER_SIZE) > 0
+                    ? x.getLong(VizierRecorder.HEADER_SIZE + 4) : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Returns the arrival time of the first recorded message, in milliseconds since the epoch, or NaN if the recording
+     * is empty.
+     */
+    public double getStartTime() {
+        long first = Long.MAX_VALUE;
+        for (long x : this.firstTimes) {
+            first = Math.min(first, x);
+        }
+
+        return first == Long.MAX_VALUE ? Double.NaN : first / 1e6;
+    }
+
+    /**
+     * Returns the arrival time of the last recorded message, in milliseconds since the epoch, or NaN if the recording
+     * is empty.
+     */
+    public double getEndTime() {
+        for (int i = this.segments.size() - 1; i >= 0; i--) {
+            if(this.firstTimes[i] == Long.MAX_VALUE) {
+                continue;
+            }
+
+            this.loadIndex(i);
+            ByteBuffer x = this.segments.get(i);
+            int position = this.indexOffsets[i][this.indexOffsets[i].length - 1];
+            long last = 0;
+
+            for (int length; (length = recordLength(x, position)) > 0; position += 4 + length) {
+                last = x.getLong(position + 4);
+            }
+
+            return last / 1e6;
+        }
+
+        return Double.NaN;
+    }
+
+    /**
+     * Returns the arrival time of the next message to be played, in milliseconds since the epoch, or NaN if playback
+     * has reached the end of the recording.
+     */
+    public synchronized double getPosition() {
+        this.skipEmpty();
+
+        if(this.segment == this.segments.size()) {
+            return Double.NaN;
+        }
+
+        return this.segments.get(this.segment).getLong(this.offset + 4) / 1e6;
+    }
+
+    /**
+     * Moves playback to the first message that arrived at or after the given time.  Moves to the start of the
+     * recording if the time is before it, and to its end if the time is after it.
+     *
+     * @param time Time in milliseconds since the epoch.
+     */
+    public synchronized void seek(double time) {
+        long target = (long) (time * 1e6);
+
+        // The last segment that starts at or before the target, or the first one.
+        int found = 0;
+        for (int i = 0; i < this.firstTimes.length; i++) {
+            if(this.firstTimes[i] <= target) {
+                found = i;
+            }
+        }
+
+        this.loadIndex(found);
+        long[] times = this.indexTimes[found];
+        int entry = 0;
+        int low = 0;
+        int high = times.length - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if(times[middle] <= target) {
+                entry = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        ByteBuffer x = this.segments.get(found);
+        int position = times.length > 0 ? this.indexOffsets[found][entry] : VizierRecorder.HEADER_SIZE;
+
+        for (int length; (length = recordLength(x, position)) > 0 && x.getLong(position + 4) < target; ) {
+            position += 4 + length;
+        }
+
+        this.segment = found;
+        this.offset = position;
+    }
+
+    /**
+     * Publishes the recorded messages through a node, from the current position to the end of the recording, or until
+     * stop() is called.  Messages are published on their recorded topics through the transport of the node, whether or
+     * not the node declares them, so that its subscribers and those of other nodes receive them as they were recorded.
+     * Blocks until playback ends.
+     *
+     * @param node Node through which to publish.
+     * @param speed Factor by which to speed up playback: 1 keeps the original spacing of the messages, 2 plays twice as
+     *              fast, and 0 publishes them as fast as possible.
+     * Returns the number of messages published.
+     */
+    public long replay(VizierNode node, double speed) {
+        return this.replay(node.getTransport(), speed);
+    }
+
+    /**
+     * Publishes the recorded messages through a transport, as replay(VizierNode, double) does.
+     */
+    public long replay(Transport transport, double speed) {
+        if(speed < 0 || Double.isNaN(speed)) {
+            throw new IllegalArgumentException("Speed must be positive, or 0 for as fast as possible");
+        }
+
+        this.stopped = false;
+        long first = -1;
+        long startedAt = System.nanoTime();
+        long published = 0;
+
+        while (!this.stopped) {
+            String topic;
+            byte[] payload;
+            long time;
+
+            synchronized (this) {
+                this.skipEmpty();
+                if(this.segment == this.segments.size()) {
+                    break;
+                }
+
+                ByteBuffer x = this.segments.get(this.segment);
+                int length = recordLength(x, this.offset);
+                time = x.getLong(this.offset + 4);
+                int topicLength = x.getShort(this.offset + 4 + 8) & 0xFFFF;
+
+                byte[] encoded = new byte[topicLength];
+                payload = new byte[length - VizierRecorder.RECORD_HEADER_SIZE - topicLength];
+                ByteBuffer record = x.duplicate();
+                record.position(this.offset + 4 + VizierRecorder.RECORD_HEADER_SIZE);
+                record.get(encoded).get(payload);
+                topic = new String(encoded, StandardCharsets.UTF_8);
+
+                this.offset += 4 + length;
+            }
+
+            if(speed > 0 && !Double.isInfinite(speed)) {
+                if(first < 0) {
+                    first = time;
+                }
+
+                long due = startedAt + (long) ((time - first) / speed);
+                for (long wait; (wait = due - System.nanoTime()) > 0 && !this.stopped; ) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            transport.publish(topic, payload);
+            published++;
+        }
+
+        return published;
+    }
+
+    /**
+     * Runs replay() on a background thread, so that playback can run while MATLAB reads the messages.
+     *
+     * Returns a future that completes with the number of messages published once playback ends.
+     */
+    public CompletableFuture<Long> replayAsync(VizierNode node, double speed) {
+        return CompletableFuture.supplyAsync(() -> this.replay(node, speed), (r) -> {
+            Thread t = new Thread(r, "vizier-replayer");
+            t.setDaemon(true);
+            t.start();
+        });
+    }
+
+    /**
+     * Stops playback after the message being published.  The position is kept, so that replay() resumes from there.
+     */
+    public void stop() {
+        this.stopped = true;
+    }
+
+    /**
+     * Moves the position past the end of the current segment, and any empty segments after it.
+     */
+    private void skipEmpty() {
+        while (this.segment < this.segments.size()
+                && recordLength(this.segments.get(this.segment), this.offset) == 0) {
+            this.segment++;
+            this.offset = VizierRecorder.HEADER_SIZE;
+        }
+    }
+
+    /**
+     * Reads the index of a segment, or rebuilds it from the segment if it was not written, as when the recording was
+     * not closed.
+     */
+    private synchronized void loadIndex(int number) {
+        if(this.indexTimes[number] != null) {
+            return;
+        }
+
+        Path path = VizierRecorder.indexPath(this.directory, number);
+        ByteBuffer index = null;
+
+        try {
+            if(Files.exists(path)) {
+                index = ByteBuffer.wrap(Files.readAllBytes(path));
+            }
+        } catch (IOException e) {
+            // Rebuilt below.
+        }
+
+        if(index == null || index.remaining() % VizierRecorder.INDEX_ENTRY_SIZE != 0) {
+            index = this.buildIndex(number);
+        }
+
+        int entries = index.remaining() / VizierRecorder.INDEX_ENTRY_SIZE;
+        long[] times = new long[entries];
+        int[] offsets = new int[entries];
+
+        for (int i = 0; i < entries; i++) {
+            times[i] = index.getLong();
+            offsets[i] = index.getInt();
+        }
+
+        this.indexTimes[number] = times;
+        this.indexOffsets[number] = offsets;
+    }
+
+    private ByteBuffer buildIndex(int number) {
+        ByteBuffer x = this.segments.get(number);
+        ByteBuffer index = ByteBuffer.allocate(0);
+        int records = 0;
+
+        for (int position = VizierRecorder.HEADER_SIZE, length; (length = recordLength(x, position)) > 0;
+             position += 4 + length) {
+            if(records % VizierRecorder.INDEX_INTERVAL == 0) {
+                if(index.remaining() < VizierRecorder.INDEX_ENTRY_SIZE) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(64 * VizierRecorder.INDEX_ENTRY_SIZE,
+                            2 * index.capacity()));
+                    index.flip();
+                    index = grown.put(index);
+                }
+                index.putLong(x.getLong(position + 4)).putInt(position);
+            }
+            records++;
+        }
+
+        index.flip();
+        return index;
+    }
+
+    /**
+     * Returns the length of the record at an offset in a segment, excluding its length field, or 0 if the segment ends
+     * there.
+     */
+    private static int recordLength(ByteBuffer segment, int offset) {
+        if(offset + 4 > segment.limit()) {
+            return 0;
+        }
+
+        int length = segment.getInt(offset);
+        if(length < VizierRecorder.RECORD_HEADER_SIZE || length > segment.limit() - offset - 4) {
+            return 0;
+        }
+
+        return length;
+    }
+}
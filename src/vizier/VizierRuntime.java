@@ -0,0 +1,348 @@
+package vizier;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Threads shared by the vizier client: a striped executor that runs subscription callbacks, and a scheduler for timed
+ * tasks such as request retries.
+ *
+ * Callbacks are assigned to stripes by the identity of the callback, and each stripe runs its tasks one at a time in
+ * submission order.  Each callback therefore sees the messages on a topic in order and is never run concurrently with
+ * itself, while different callbacks run in parallel.  A slow callback only delays the callbacks that share its stripe.
+ *
+ * Each stripe queues at most stripeCapacity messages.  When a stripe is full, an incoming message is handled according
+ * to the overflow policy: BLOCK, the default, holds up the thread that received it, such as the MQTT client's, so that
+ * a slow callback pushes back on the broker connection, and drops the message if no space frees up within the block
+ * timeout.  Dropped messages are counted as dispatch.dropped in the metrics.
+ */
+public class VizierRuntime {
+
+    /**
+     * Threads on which callbacks run.
+     */
+    public enum ThreadModel {
+        /**
+         * A fixed pool of platform threads.
+         */
+        FIXED_POOL,
+
+        /**
+         * One virtual thread per batch of callbacks.  Requires Java 21; falls back to FIXED_POOL on older runtimes.
+         */
+        VIRTUAL,
+
+        /**
+         * Callbacks run directly on the thread that received the message, one at a time even if messages are received
+         * on several threads, as with LoopbackTransport.  A slow callback stalls all others.
+         */
+        DIRECT
+    }
+
+    /**
+     * System property from which the default thread model is read (e.g., -Dvizier.threadModel=VIRTUAL).
+     */
+    public static final String THREAD_MODEL_PROPERTY = "vizier.threadModel";
+
+    /**
+     * Maximum number of messages queued on each stripe when none is given.
+     */
+    public static final int DEFAULT_STRIPE_CAPACITY = 4096;
+
+    /**
+     * For the BLOCK policy, how long to wait for space on a full stripe when no timeout is given, in milliseconds.
+     */
+    public static final long DEFAULT_BLOCK_TIMEOUT = 1000;
+
+    // Maximum number of tasks a stripe runs before yielding its thread to other stripes.
+    private static final int MAX_STRIPE_BATCH = 64;
+
+    private final Logger logger = Logger.getGlobal();
+
+    private final ThreadModel threadModel;
+    private final ExecutorService dispatchExecutor;
+    private final Executor[] stripes;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    // Numbers the runtimes of the JVM, to name their metrics MBeans.
+    private static final AtomicInteger runtimeCount = new AtomicInteger();
+    private final VizierMetrics metrics = new VizierMetrics();
+
+    /**
+     * Creates a runtime with the thread model given by the vizier.threadModel system property, or a fixed pool with one
+     * thread per processor if it is not set.
+     */
+    public VizierRuntime() {
+        this(defaultThreadModel(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threadModel Threads on which callbacks run.
+     * @param threads For FIXED_POOL, the number of dispatch threads.
+     */
+    public VizierRuntime(ThreadModel threadModel, int threads) {
+        this(threadModel, threads, DEFAULT_STRIPE_CAPACITY, OverflowPolicy.BLOCK, DEFAULT_BLOCK_TIMEOUT);
+    }
+
+    /**
+     * @param threadModel Threads on which callbacks run.
+     * @param threads For FIXED_POOL, the number of dispatch threads.
+     * @param stripeCapacity Maximum number of messages queued on each stripe.  Not used by DIRECT, which queues none.
+     * @param overflowPolicy What to do with an incoming message when its stripe is full.
+     * @param blockTimeout For the BLOCK policy, how long to wait for space on a full stripe, in milliseconds.
+     */
+    public VizierRuntime(ThreadModel threadModel, int threads, int stripeCapacity, OverflowPolicy overflowPolicy,
+                         long blockTimeout) {
+        if(stripeCapacity <= 0) {
+            throw new IllegalArgumentException("Stripe capacity must be positive");
+        }
+
+        ExecutorService virtual = threadModel == ThreadModel.VIRTUAL ? newVirtualThreadExecutor() : null;
+        if(threadModel == ThreadModel.VIRTUAL && virtual == null) {
+            this.logger.log(Level.WARNING, "Virtual threads are not available.  Using a fixed thread pool.");
+            threadModel = ThreadModel.FIXED_POOL;
+        }
+        this.threadModel = threadModel;
+
+        switch (threadModel) {
+            case VIRTUAL:
+                this.dispatchExecutor = virtual;
+                this.stripes = newStripes(virtual, 4 * Runtime.getRuntime().availableProcessors(), stripeCapacity,
+                        overflowPolicy, blockTimeout);
+                break;
+            case DIRECT:
+                this.dispatchExecutor = null;
+                this.stripes = new Executor[] { new DirectExecutor() };
+                break;
+            default:
+                this.dispatchExecutor = Executors.newFixedThreadPool(threads, daemonThreads("vizier-dispatch"));
+                this.stripes = newStripes(this.dispatchExecutor, 4 * threads, stripeCapacity, overflowPolicy,
+                        blockTimeout);
+                break;
+        }
+
+        this.scheduler = new ScheduledThreadPoolExecutor(1, daemonThreads("vizier-scheduler"));
+        this.scheduler.setRemoveOnCancelPolicy(true);
+
+        this.metrics.register("runtime-" + runtimeCount.incrementAndGet());
+    }
+
+    /**
+     * Returns the thread model in use.  May differ from the requested model if it is not available.
+     */
+    public ThreadModel getThreadModel() {
+        return this.threadModel;
+    }
+
+    /**
+     * Returns the scheduler for timed tasks.
+     */
+    public ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * Returns the metrics of the traffic handled on this runtime.  Also registered over JMX as
+     * vizier:type=Metrics,name=runtime-(number) until the runtime is shut down.
+     */
+    public VizierMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Runs a callback task on the stripe of the given callback.  Tasks for the same callback run in submission order,
+     * one at a time.
+     */
+    void dispatch(Object callback, Runnable task) {
+        int hash = System.identityHashCode(callback);
+        // Spread the bits, as identity hashes are not well distributed in the low bits.
+        hash ^= (hash >>> 16);
+        this.stripes[(hash & 0x7FFFFFFF) % this.stripes.length].execute(task);
+    }
+
+    /**
+     * Runs a handler for an incoming message on its stripe, or on the calling thread for a MessageTap.  Failures are
+     * contained, so that one bad handler does not prevent delivery to the others.
+     */
+    void deliver(MessageHandler handler, String topic, byte[] payload) {
+        if(handler instanceof MessageTap) {
+            try {
+                handler.handle(topic, payload);
+            } catch (RuntimeException e) {
+                this.metrics.callbackFailed();
+                this.logger.log(Level.WARNING, "Tap for topic " + topic + " failed.", e);
+            }
+            return;
+        }
+
+        long receivedAt = System.nanoTime();
+
+        this.dispatch(handler, () -> {
+            this.metrics.callbackStarted(receivedAt);
+            try {
+                handler.handle(topic, payload);
+            } catch (RuntimeException e) {
+                this.metrics.callbackFailed();
+                this.logger.log(Level.WARNING, "Callback for topic " + topic + " failed.", e);
+            }
+        });
+    }
+
+    /**
+     * Stops all threads.  Queued callbacks are discarded.
+     */
+    public void shutdown() {
+        if(this.dispatchExecutor != null) {
+            this.dispatchExecutor.shutdownNow();
+        }
+        this.scheduler.shutdownNow();
+        this.metrics.unregister();
+    }
+
+    private static ThreadModel defaultThreadModel() {
+        String model = System.getProperty(THREAD_MODEL_PROPERTY);
+
+        if(model == null) {
+            return ThreadModel.FIXED_POOL;
+        }
+
+        try {
+            return ThreadModel.valueOf(model.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Logger.getGlobal().log(Level.WARNING, "Unknown thread model " + model + ".  Using a fixed thread pool.");
+            return ThreadModel.FIXED_POOL;
+        }
+    }
+
+    // Looked up reflectively so that the client still targets Java 8, as required by MATLAB.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private Executor[] newStripes(Executor executor, int count, int capacity, OverflowPolicy overflowPolicy,
+                                  long blockTimeout) {
+        Executor[] stripes = new Executor[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new SerialExecutor(executor, capacity, overflowPolicy, blockTimeout, this.metrics);
+        }
+
+        return stripes;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return (r) -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Runs tasks on the submitting thread, one at a time, so that callbacks keep the guarantee of never running
+     * concurrently with themselves when messages are received on several threads.  A single lock, rather than one per
+     * callback, so that callbacks that publish to one another cannot deadlock; it is reentrant, so a callback that
+     * publishes a message to another runs it before returning.
+     */
+    private static class DirectExecutor implements Executor {
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            task.run();
+        }
+    }
+
+    /**
+     * Runs tasks one at a time, in submission order, on an underlying executor.  Holds at most capacity tasks, and
+     * handles a task submitted when full according to the overflow policy.
+     */
+    private static class SerialExecutor implements Executor {
+
+        private final Executor executor;
+        private final ArrayBlockingQueue<Runnable> tasks;
+        private final OverflowPolicy overflowPolicy;
+        private final long blockTimeout;
+        private final VizierMetrics metrics;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        SerialExecutor(Executor executor, int capacity, OverflowPolicy overflowPolicy, long blockTimeout,
+                       VizierMetrics metrics) {
+            this.executor = executor;
+            this.tasks = new ArrayBlockingQueue<>(capacity);
+            this.overflowPolicy = overflowPolicy;
+            this.blockTimeout = blockTimeout;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if(!this.tasks.offer(task) && !this.overflow(task)) {
+                this.metrics.callbackDropped();
+                return;
+            }
+
+            this.schedule();
+        }
+
+        /**
+         * Queues a task on a full stripe according to the overflow policy.  Returns false if it was dropped.
+         */
+        private boolean overflow(Runnable task) {
+            switch (this.overflowPolicy) {
+                case BLOCK:
+                    // A full stripe always has a drain scheduled, which frees up space.
+                    try {
+                        return this.tasks.offer(task, this.blockTimeout, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                case DROP_OLDEST:
+                    while (!this.tasks.offer(task)) {
+                        if(this.tasks.poll() != null) {
+                            this.metrics.callbackDropped();
+                        }
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private void schedule() {
+            if(!this.tasks.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+                try {
+                    this.executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    // Shutting down.
+                    this.tasks.clear();
+                }
+            }
+        }
+
+        private void drain() {
+            try {
+                for (int i = 0; i < MAX_STRIPE_BATCH; i++) {
+                    Runnable task = this.tasks.poll();
+                    if(task == null) {
+                        break;
+                    }
+                    task.run();
+                }
+            } finally {
+                this.scheduled.set(false);
+                // Reschedule if more tasks arrived, or if the batch limit was reached.
+                this.schedule();
+            }
+        }
+    }
+}